@@ -0,0 +1,247 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+import com.shtick.apps.sh.core.Driver;
+import com.shtick.apps.sh.core.Question;
+import com.shtick.apps.sh.core.QuestionID;
+import com.shtick.apps.sh.core.Quiz;
+import com.shtick.apps.sh.core.QuizDesign;
+import com.shtick.apps.sh.core.QuizDesignID;
+import com.shtick.apps.sh.core.QuizDesignSubject;
+import com.shtick.apps.sh.core.QuizID;
+import com.shtick.apps.sh.core.Subject;
+import com.shtick.apps.sh.core.SubjectQuestionGenerator;
+import com.shtick.apps.sh.core.UserID;
+import com.shtick.apps.sh.driver.sqlite.bundle.DriverActivator;
+import com.shtick.apps.sh.driver.sqlite.bundle.SubjectQuestionGeneratorTracker;
+
+/**
+ * A driver opened on a private copy of a database pre-seeded with a given number of answers.
+ *
+ * Seeded databases are built once per size and kept in the directory named by the sh.bench.dataDir system property
+ * (the temporary directory by default), since seeding the largest size takes a while. Each trial works on a fresh copy.
+ *
+ * @author sean.cox
+ *
+ */
+@State(Scope.Benchmark)
+public class BenchmarkDatabase {
+	/**
+	 * The subjects offered by the stub generators.
+	 */
+	public static final Subject[] SUBJECTS = {new Subject("bench.math"), new Subject("bench.spelling")};
+	private static final int USER_COUNT = 10;
+	private static final int QUESTIONS_PER_SUBJECT = 5;
+	private static final int ANSWERS_PER_QUESTION = 10;
+	private static final int SAMPLE_SIZE = 1000;
+
+	/**
+	 * The number of answers in the seeded database.
+	 */
+	@Param({"1000", "100000", "1000000"})
+	public int answerCount;
+
+	/**
+	 * The driver under test.
+	 */
+	public SQLiteDriver driver;
+	/**
+	 * A design, belonging to users[0], with QUESTIONS_PER_SUBJECT questions on each subject.
+	 */
+	public QuizDesignID quizDesignID;
+	/**
+	 * The seeded users.
+	 */
+	public UserID[] users;
+	private List<QuizID> quizIDs;
+	private List<Question> questions;
+	private File databaseFile;
+
+	/**
+	 * A SubjectQuestionGenerator which makes trivial arithmetic questions.
+	 */
+	public static class StubGenerator implements SubjectQuestionGenerator {
+		private final Subject subject;
+
+		/**
+		 * @param subject
+		 */
+		public StubGenerator(Subject subject) {
+			this.subject = subject;
+		}
+
+		@Override
+		public Subject getSubject() {
+			return subject;
+		}
+
+		@Override
+		public Collection<Question> generateQuestions(Driver driver, UserID userID, int count) throws IOException {
+			ArrayList<Question> retval = new ArrayList<>(count);
+			for(int i=0;i<count;i++){
+				int a = ThreadLocalRandom.current().nextInt(100);
+				int b = ThreadLocalRandom.current().nextInt(100);
+				HashMap<String,Float> dimensions = new HashMap<>();
+				dimensions.put("add", 1.0f);
+				dimensions.put("carry", ((a%10)+(b%10)>=10)?1.0f:0.0f);
+				retval.add(new Question(null, null, 0, subject, a+"+"+b, "text/plain", "", "text/plain", Integer.toString(a+b), dimensions, 1, ZonedDateTime.now()));
+			}
+			return retval;
+		}
+
+		@Override
+		public int getAnswerScore(Question question, String answer) {
+			return question.getAnswerValue().equals(answer)?question.getPoints():0;
+		}
+	}
+
+	/**
+	 * @throws IOException
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws IOException{
+		installGenerators();
+		File seedFile = new File(System.getProperty("sh.bench.dataDir", System.getProperty("java.io.tmpdir")), "sh-bench-"+answerCount+".db");
+		if(!seedFile.exists())
+			seed(seedFile);
+		databaseFile = File.createTempFile("sh-bench-", ".db");
+		Files.copy(seedFile.toPath(), databaseFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		driver = open(databaseFile);
+
+		users = driver.getUsers().stream().map((user)->user.getUserID()).toArray(UserID[]::new);
+		quizDesignID = driver.getQuizDesigns(users[0]).iterator().next().getQuizDesignID();
+		quizIDs = new ArrayList<>();
+		for(UserID userID:users)
+			for(Quiz quiz:driver.getUserQuizes(userID))
+				quizIDs.add(quiz.getQuizID());
+		questions = new ArrayList<>();
+		while((questions.size()<SAMPLE_SIZE)&&(questions.size()<quizIDs.size()*QUESTIONS_PER_SUBJECT*SUBJECTS.length))
+			questions.addAll(driver.getQuizQuestions(quizIDs.get(ThreadLocalRandom.current().nextInt(quizIDs.size()))));
+	}
+
+	/**
+	 * @throws IOException
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException{
+		driver.close();
+		for(String suffix:new String[]{"", "-wal", "-shm"})
+			new File(databaseFile.getPath()+suffix).delete();
+	}
+
+	/**
+	 * @return A random seeded quiz.
+	 */
+	public QuizID randomQuizID(){
+		return quizIDs.get(ThreadLocalRandom.current().nextInt(quizIDs.size()));
+	}
+
+	/**
+	 * @return A random seeded question.
+	 */
+	public Question randomQuestion(){
+		return questions.get(ThreadLocalRandom.current().nextInt(questions.size()));
+	}
+
+	/**
+	 * @return A random seeded user.
+	 */
+	public UserID randomUser(){
+		return users[ThreadLocalRandom.current().nextInt(users.length)];
+	}
+
+	private static SQLiteDriver open(File file){
+		DriverConfiguration configuration = new DriverConfiguration();
+		configuration.setDatabaseURL("jdbc:sqlite:"+file.getPath());
+		return new SQLiteDriver(configuration);
+	}
+
+	private void seed(File seedFile) throws IOException{
+		File partFile = new File(seedFile.getPath()+".part");
+		SQLiteDriver seedDriver = open(partFile);
+		try{
+			HashSet<QuizDesignSubject> subjects = new HashSet<>();
+			for(Subject subject:SUBJECTS)
+				subjects.add(new QuizDesignSubject(subject, QUESTIONS_PER_SUBJECT, QUESTIONS_PER_SUBJECT));
+			int questionsPerQuiz = QUESTIONS_PER_SUBJECT*SUBJECTS.length;
+			int quizesPerUser = Math.max(1, answerCount/(USER_COUNT*questionsPerQuiz*ANSWERS_PER_QUESTION));
+			for(int u=0;u<USER_COUNT;u++){
+				UserID userID = seedDriver.createUser("bench"+u);
+				QuizDesignID designID = seedDriver.createQuizDesign(new QuizDesign(null, userID, "bench", subjects, questionsPerQuiz, questionsPerQuiz, ZonedDateTime.now()));
+				for(int q=0;q<quizesPerUser;q++){
+					Quiz quiz = seedDriver.generateQuiz(designID);
+					ArrayList<AnswerSubmission> submissions = new ArrayList<>(questionsPerQuiz*ANSWERS_PER_QUESTION);
+					for(Question question:seedDriver.getQuizQuestions(quiz.getQuizID()))
+						for(int a=0;a<ANSWERS_PER_QUESTION;a++)
+							submissions.add(new AnswerSubmission(question, ThreadLocalRandom.current().nextBoolean()?question.getAnswerValue():"0", ZonedDateTime.now()));
+					seedDriver.saveAnswers(submissions);
+				}
+			}
+		}
+		finally{
+			seedDriver.close();
+		}
+		// Closing the last connection checkpoints the WAL into the main file, so a plain copy is complete.
+		if(!partFile.renameTo(seedFile))
+			throw new IOException("Could not create "+seedFile);
+	}
+
+	private static void installGenerators(){
+		if(DriverActivator.SUBJECT_QUESTION_GENERATOR_TRACKER!=null)
+			return;
+		final Map<ServiceReference<?>,Object> services = new HashMap<>();
+		for(Subject subject:SUBJECTS){
+			ServiceReference<?> reference = (ServiceReference<?>)Proxy.newProxyInstance(BenchmarkDatabase.class.getClassLoader(), new Class<?>[]{ServiceReference.class}, (proxy, method, args)->{
+				switch(method.getName()){
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy==args[0];
+				default:
+					return null;
+				}
+			});
+			services.put(reference, new StubGenerator(subject));
+		}
+		final Set<ServiceReference<?>> references = services.keySet();
+		BundleContext context = (BundleContext)Proxy.newProxyInstance(BenchmarkDatabase.class.getClassLoader(), new Class<?>[]{BundleContext.class}, (proxy, method, args)->{
+			switch(method.getName()){
+			case "getServiceReferences":
+				return references.toArray(new ServiceReference<?>[references.size()]);
+			case "getService":
+				return services.get(args[0]);
+			case "ungetService":
+				return true;
+			default:
+				return null;
+			}
+		});
+		DriverActivator.SUBJECT_QUESTION_GENERATOR_TRACKER = new SubjectQuestionGeneratorTracker(context);
+	}
+}
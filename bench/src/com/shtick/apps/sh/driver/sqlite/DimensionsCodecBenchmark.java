@@ -0,0 +1,89 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of decoding question dimensions in the current binary format and in the legacy JSON format,
+ * which was parsed on every question read before the binary format was introduced.
+ *
+ * @author sean.cox
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DimensionsCodecBenchmark {
+	/**
+	 * The number of dimensions in the map.
+	 */
+	@Param({"2", "8"})
+	public int dimensionCount;
+
+	private Map<String,Float> dimensions;
+	private byte[] binary;
+	private String json;
+
+	/**
+	 *
+	 */
+	@Setup
+	public void setUp(){
+		dimensions = new HashMap<>();
+		StringBuilder jsonBuilder = new StringBuilder("{");
+		for(int i=0;i<dimensionCount;i++){
+			String name = "dimension"+i;
+			float value = i/4.0f;
+			dimensions.put(name, value);
+			if(i>0)
+				jsonBuilder.append(',');
+			jsonBuilder.append('"').append(name).append("\":").append(value);
+		}
+		json = jsonBuilder.append('}').toString();
+		binary = DimensionsCodec.encode(dimensions);
+	}
+
+	/**
+	 * @return The encoded dimensions.
+	 */
+	@Benchmark
+	public byte[] encode(){
+		return DimensionsCodec.encode(dimensions);
+	}
+
+	/**
+	 * @return The decoded dimensions.
+	 */
+	@Benchmark
+	public Map<String,Float> decodeBinary(){
+		return DimensionsCodec.decode(binary);
+	}
+
+	/**
+	 * @return The decoded dimensions.
+	 */
+	@Benchmark
+	public Map<String,Float> decodeJSON(){
+		return DimensionsCodec.decode(json.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,175 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.shtick.apps.sh.core.Answer;
+import com.shtick.apps.sh.core.AnswerID;
+import com.shtick.apps.sh.core.Question;
+import com.shtick.apps.sh.core.Quiz;
+
+/**
+ * Benchmarks of the SQLiteDriver operations on the quiz taking path.
+ *
+ * Each operation has a single-threaded benchmark and a contended one run from several threads at once.
+ * The mixed group runs readers alongside a writer, to show how much answer writes hold up reads.
+ *
+ * @author sean.cox
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DriverBenchmark {
+	private static final int CONTENDED_THREADS = 4;
+
+	/**
+	 * @param database
+	 * @return The generated quiz.
+	 * @throws IOException
+	 */
+	@Benchmark
+	public Quiz generateQuiz(BenchmarkDatabase database) throws IOException{
+		return database.driver.generateQuiz(database.quizDesignID);
+	}
+
+	/**
+	 * @param database
+	 * @return The generated quiz.
+	 * @throws IOException
+	 */
+	@Benchmark
+	@Threads(CONTENDED_THREADS)
+	public Quiz generateQuizContended(BenchmarkDatabase database) throws IOException{
+		return database.driver.generateQuiz(database.quizDesignID);
+	}
+
+	/**
+	 * @param database
+	 * @return The ID of the saved answer.
+	 * @throws IOException
+	 */
+	@Benchmark
+	public AnswerID saveAnswer(BenchmarkDatabase database) throws IOException{
+		Question question = database.randomQuestion();
+		return database.driver.saveAnswer(question, question.getAnswerValue(), ZonedDateTime.now());
+	}
+
+	/**
+	 * @param database
+	 * @return The ID of the saved answer.
+	 * @throws IOException
+	 */
+	@Benchmark
+	@Threads(CONTENDED_THREADS)
+	public AnswerID saveAnswerContended(BenchmarkDatabase database) throws IOException{
+		Question question = database.randomQuestion();
+		return database.driver.saveAnswer(question, question.getAnswerValue(), ZonedDateTime.now());
+	}
+
+	/**
+	 * @param database
+	 * @return The questions of a quiz.
+	 * @throws IOException
+	 */
+	@Benchmark
+	public Collection<Question> getQuizQuestions(BenchmarkDatabase database) throws IOException{
+		return database.driver.getQuizQuestions(database.randomQuizID());
+	}
+
+	/**
+	 * @param database
+	 * @return The questions of a quiz.
+	 * @throws IOException
+	 */
+	@Benchmark
+	@Threads(CONTENDED_THREADS)
+	public Collection<Question> getQuizQuestionsContended(BenchmarkDatabase database) throws IOException{
+		return database.driver.getQuizQuestions(database.randomQuizID());
+	}
+
+	/**
+	 * @param database
+	 * @return The latest answer to a question.
+	 * @throws IOException
+	 */
+	@Benchmark
+	public Answer getLatestAnswer(BenchmarkDatabase database) throws IOException{
+		return database.driver.getLatestAnswer(database.randomQuestion().getQuestionID());
+	}
+
+	/**
+	 * @param database
+	 * @return The latest answer to a question.
+	 * @throws IOException
+	 */
+	@Benchmark
+	@Threads(CONTENDED_THREADS)
+	public Answer getLatestAnswerContended(BenchmarkDatabase database) throws IOException{
+		return database.driver.getLatestAnswer(database.randomQuestion().getQuestionID());
+	}
+
+	/**
+	 * @param database
+	 * @return A user's questions on a subject.
+	 * @throws IOException
+	 */
+	@Benchmark
+	public Collection<Question> getUserSubjectQuestions(BenchmarkDatabase database) throws IOException{
+		return database.driver.getUserSubjectQuestions(database.randomUser(), BenchmarkDatabase.SUBJECTS[0]);
+	}
+
+	/**
+	 * @param database
+	 * @return A user's questions on a subject.
+	 * @throws IOException
+	 */
+	@Benchmark
+	@Threads(CONTENDED_THREADS)
+	public Collection<Question> getUserSubjectQuestionsContended(BenchmarkDatabase database) throws IOException{
+		return database.driver.getUserSubjectQuestions(database.randomUser(), BenchmarkDatabase.SUBJECTS[0]);
+	}
+
+	/**
+	 * @param database
+	 * @return The latest answer to a question.
+	 * @throws IOException
+	 */
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(CONTENDED_THREADS-1)
+	public Answer mixedRead(BenchmarkDatabase database) throws IOException{
+		return database.driver.getLatestAnswer(database.randomQuestion().getQuestionID());
+	}
+
+	/**
+	 * @param database
+	 * @return The ID of the saved answer.
+	 * @throws IOException
+	 */
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public AnswerID mixedWrite(BenchmarkDatabase database) throws IOException{
+		Question question = database.randomQuestion();
+		return database.driver.saveAnswer(question, question.getAnswerValue(), ZonedDateTime.now());
+	}
+}
@@ -0,0 +1,53 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.time.ZonedDateTime;
+
+import com.shtick.apps.sh.core.Question;
+
+/**
+ * An answer to be saved with SQLiteDriver.saveAnswers().
+ *
+ * @author sean.cox
+ *
+ */
+public class AnswerSubmission {
+	private final Question question;
+	private final String answer;
+	private final ZonedDateTime timeAsked;
+
+	/**
+	 * @param question The question being answered.
+	 * @param answer The answer given.
+	 * @param timeAsked The time the question was presented.
+	 */
+	public AnswerSubmission(Question question, String answer, ZonedDateTime timeAsked) {
+		super();
+		this.question = question;
+		this.answer = answer;
+		this.timeAsked = timeAsked;
+	}
+
+	/**
+	 * @return the question
+	 */
+	public Question getQuestion() {
+		return question;
+	}
+
+	/**
+	 * @return the answer
+	 */
+	public String getAnswer() {
+		return answer;
+	}
+
+	/**
+	 * @return the timeAsked
+	 */
+	public ZonedDateTime getTimeAsked() {
+		return timeAsked;
+	}
+}
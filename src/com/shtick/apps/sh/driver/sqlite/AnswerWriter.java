@@ -0,0 +1,272 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import com.shtick.apps.sh.core.Answer;
+
+/**
+ * Queues answers and saves them from a background thread, committing many answers per transaction.
+ *
+ * A batch is written as soon as it is full, or once the oldest queued answer has waited for the maximum
+ * latency, whichever comes first. If a batch cannot be written, its answers are retried one at a time so
+ * that a single bad row does not hold up, or lose, the rest of the batch. Answers which still cannot be written
+ * are reported by the next call to flush() or close(). If the writer thread itself fails, nothing more is written,
+ * and every later call to flush() or close() reports the failure.
+ *
+ * Each queued answer is indexed by the IDs of the things it belongs to, so that a read which does not touch any of
+ * them need not wait for the queue to be written.
+ *
+ * @author sean.cox
+ *
+ */
+class AnswerWriter {
+	/**
+	 * Saves a batch of answers.
+	 */
+	interface Sink {
+		/**
+		 * @param answers The answers to save in a single transaction.
+		 * @throws IOException
+		 */
+		void write(List<Answer> answers) throws IOException;
+	}
+
+	private final Sink sink;
+	private final int maxBatchSize;
+	private final int maxQueueSize;
+	private final long maxLatencyNanos;
+	private final ArrayDeque<QueuedAnswer> queue = new ArrayDeque<>();
+	private final HashMap<String,Integer> pendingKeys = new HashMap<>();
+	private final Thread writerThread;
+	private long oldestQueuedNanos;
+	private long queuedCount = 0;
+	private long writtenCount = 0;
+	private int flushWaiters = 0;
+	private boolean closed = false;
+	private final ArrayList<IOException> failures = new ArrayList<>();
+	private long failedCount = 0;
+	private Throwable writerFailure = null;
+
+	private static class QueuedAnswer {
+		private final Answer answer;
+		private final String[] keys;
+
+		QueuedAnswer(Answer answer, String[] keys) {
+			this.answer = answer;
+			this.keys = keys;
+		}
+	}
+
+	/**
+	 * @param sink
+	 * @param maxBatchSize The maximum number of answers committed per transaction.
+	 * @param maxLatencyMillis The maximum time an answer waits in the queue before its batch is written.
+	 */
+	public AnswerWriter(Sink sink, int maxBatchSize, int maxLatencyMillis) {
+		super();
+		this.sink = sink;
+		this.maxBatchSize = maxBatchSize;
+		this.maxQueueSize = maxBatchSize*16;
+		this.maxLatencyNanos = maxLatencyMillis*1000000L;
+		writerThread = new Thread(this::run, "sh-driver-sqlite-answer-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Queues an answer to be saved. Blocks if the queue is full.
+	 *
+	 * @param answer
+	 * @param owners The IDs of the quiz and user the answer belongs to.
+	 *               Until the answer is written, flush(key) waits for it if key is one of these, or the answer's own ID or question ID.
+	 * @throws IOException If the writer has been closed, or the calling thread is interrupted while waiting for space in the queue.
+	 */
+	public synchronized void enqueue(Answer answer, Object... owners) throws IOException{
+		try{
+			while((queue.size()>=maxQueueSize)&&!closed)
+				wait();
+		}
+		catch(InterruptedException t){
+			Thread.currentThread().interrupt();
+			throw new IOException(t);
+		}
+		if(closed)
+			throw new IOException("The answer writer has been closed.");
+		if(queue.isEmpty())
+			oldestQueuedNanos = System.nanoTime();
+		String[] keys = new String[owners.length+2];
+		keys[0] = answer.getAnswerID().toString();
+		keys[1] = answer.getQuestionID().toString();
+		for(int i=0;i<owners.length;i++)
+			keys[i+2] = owners[i].toString();
+		for(String key:keys)
+			pendingKeys.merge(key, 1, Integer::sum);
+		queue.add(new QueuedAnswer(answer, keys));
+		queuedCount++;
+		notifyAll();
+	}
+
+	/**
+	 * Blocks until every answer queued before this call has been written.
+	 *
+	 * @throws IOException If the calling thread is interrupted while waiting,
+	 *                     or if any answers could not be written since failures were last reported.
+	 */
+	public synchronized void flush() throws IOException{
+		long target = queuedCount;
+		if(writtenCount<target){
+			flushWaiters++;
+			notifyAll();
+			try{
+				while((writtenCount<target)&&(writerFailure==null))
+					wait();
+			}
+			catch(InterruptedException t){
+				Thread.currentThread().interrupt();
+				throw new IOException(t);
+			}
+			finally{
+				flushWaiters--;
+			}
+		}
+		reportFailures();
+	}
+
+	/**
+	 * Blocks until every answer queued before this call has been written, if any of the answers not yet written
+	 * belong to the given ID.
+	 *
+	 * @param key The ID of an answer, or of a question, quiz or user.
+	 * @throws IOException If the calling thread is interrupted while waiting,
+	 *                     or if any answers could not be written since failures were last reported.
+	 */
+	public synchronized void flush(Object key) throws IOException{
+		if(pendingKeys.containsKey(key.toString()))
+			flush();
+	}
+
+	/**
+	 * Writes any queued answers and stops the writer thread. Answers cannot be queued after the writer is closed.
+	 *
+	 * @throws IOException If any answers could not be written since failures were last reported.
+	 */
+	public void close() throws IOException{
+		synchronized(this){
+			closed = true;
+			notifyAll();
+		}
+		try{
+			writerThread.join();
+		}
+		catch(InterruptedException t){
+			Thread.currentThread().interrupt();
+		}
+		synchronized(this){
+			reportFailures();
+		}
+	}
+
+	/**
+	 * Throws the failures recorded since the last report, and forgets them, unless the writer thread has failed.
+	 *
+	 * @throws IOException
+	 */
+	private void reportFailures() throws IOException{
+		if(writerFailure!=null)
+			throw new IOException("The answer writer has stopped, and queued answers were not saved.", writerFailure);
+		if(failures.isEmpty())
+			return;
+		IOException retval = new IOException(failedCount+" queued answer(s) could not be saved.", failures.get(0));
+		for(int i=1;i<failures.size();i++)
+			retval.addSuppressed(failures.get(i));
+		failures.clear();
+		failedCount = 0;
+		throw retval;
+	}
+
+	private synchronized void recordFailure(IOException failure){
+		// Only the first few failures are kept, so that a long outage does not hold every answer in memory.
+		if(failures.size()<16)
+			failures.add(failure);
+		failedCount++;
+	}
+
+	private void run(){
+		try{
+			writeQueued();
+		}
+		catch(Throwable t){
+			synchronized(this){
+				writerFailure = t;
+				closed = true;
+				notifyAll();
+			}
+			throw t;
+		}
+	}
+
+	private void writeQueued(){
+		while(true){
+			ArrayList<QueuedAnswer> batch;
+			synchronized(this){
+				try{
+					while(queue.isEmpty()&&!closed)
+						wait();
+					while((queue.size()<maxBatchSize)&&(flushWaiters==0)&&!closed){
+						long remaining = oldestQueuedNanos+maxLatencyNanos-System.nanoTime();
+						if(remaining<=0)
+							break;
+						wait(remaining/1000000, (int)(remaining%1000000));
+					}
+				}
+				catch(InterruptedException t){
+					// Only close() should stop the writer, so that queued answers are not lost.
+					continue;
+				}
+				if(queue.isEmpty())
+					return; // Closed, with nothing left to write.
+				batch = new ArrayList<>(Math.min(queue.size(), maxBatchSize));
+				while((batch.size()<maxBatchSize)&&!queue.isEmpty())
+					batch.add(queue.poll());
+				// Any answers left behind are newer than oldestQueuedNanos, so they are written no later than required.
+			}
+			ArrayList<Answer> answers = new ArrayList<>(batch.size());
+			for(QueuedAnswer queuedAnswer:batch)
+				answers.add(queuedAnswer.answer);
+			write(answers);
+			synchronized(this){
+				for(QueuedAnswer queuedAnswer:batch){
+					for(String key:queuedAnswer.keys)
+						pendingKeys.computeIfPresent(key, (k,count)->(count==1)?null:count-1);
+				}
+				writtenCount+=batch.size();
+				notifyAll();
+			}
+		}
+	}
+
+	private void write(List<Answer> batch){
+		try{
+			sink.write(batch);
+			return;
+		}
+		catch(IOException|RuntimeException t){
+			if(batch.size()==1){
+				System.out.println("Failed to save answer "+batch.get(0).getAnswerID()+".");
+				t.printStackTrace();
+				recordFailure(new IOException("Failed to save answer "+batch.get(0).getAnswerID()+".", t));
+				return;
+			}
+		}
+		for(Answer answer:batch)
+			write(Collections.singletonList(answer));
+	}
+}
@@ -0,0 +1,226 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of long-lived connections to a single database.
+ * Connections are opened when the pool is created and remain open until the pool is closed,
+ * so that SQLite's schema and page caches survive between calls.
+ *
+ * The database is put into WAL journal mode, which allows any number of readers to proceed
+ * concurrently with a single writer. Accordingly, the pool holds one writer connection, leased
+ * to one thread at a time, and a set of query-only reader connections which are leased concurrently.
+ *
+ * Each connection has its own StatementCache.
+ *
+ * @author sean.cox
+ *
+ */
+class ConnectionPool {
+	private final ArrayList<Connection> connections;
+	private final IdentityHashMap<Connection,StatementCache> statementCaches;
+	private final int statementCacheSize;
+	private final Map<String,String> pragmas;
+	private final LongAdder statementCacheHits = new LongAdder();
+	private final LongAdder statementCacheMisses = new LongAdder();
+	private final Connection writerConnection;
+	private final ReentrantLock writerLock = new ReentrantLock(true);
+	private final ArrayBlockingQueue<Connection> idleReaders;
+	private final DriverMetrics metrics;
+	private final SlowQueryLog slowQueryLog;
+	private final boolean readOnly;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param url The JDBC URL of the database.
+	 * @param readerCount The number of reader connections to open.
+	 * @param statementCacheSize The maximum number of prepared statements cached for each connection.
+	 * @param pragmas The PRAGMA values applied to each connection when it is opened, by PRAGMA name.
+	 * @param readOnly true if the writer connection should be query-only as well, in which case the journal mode is left as it is.
+	 * @param metrics The metrics to report connection waits, and rows read and written, to.
+	 * @param slowQueryLog The log to report slow statements to, or null.
+	 * @throws SQLException If a connection cannot be established.
+	 */
+	public ConnectionPool(String url, int readerCount, int statementCacheSize, Map<String,String> pragmas, boolean readOnly, DriverMetrics metrics, SlowQueryLog slowQueryLog) throws SQLException{
+		this.metrics = metrics;
+		this.slowQueryLog = slowQueryLog;
+		this.readOnly = readOnly;
+		connections = new ArrayList<>(readerCount+1);
+		statementCaches = new IdentityHashMap<>(readerCount+1);
+		this.statementCacheSize = statementCacheSize;
+		this.pragmas = pragmas;
+		idleReaders = new ArrayBlockingQueue<>(readerCount);
+		try{
+			// The journal mode is persistent, so it is set once, before any readers are open.
+			// An in-memory database has no write-ahead log and keeps its memory journal.
+			writerConnection = openConnection(url);
+			try(Statement statement = writerConnection.createStatement()){
+				statement.execute(readOnly?"PRAGMA query_only=1":"PRAGMA journal_mode=WAL");
+			}
+			// Connections sharing a cache lock each other out at the table level, rather than reading from a snapshot,
+			// so readers of a shared cache skip those locks and may see uncommitted changes.
+			boolean sharedCache = url.contains("cache=shared");
+			for(int i=0;i<readerCount;i++){
+				Connection connection = openConnection(url);
+				try(Statement statement = connection.createStatement()){
+					statement.execute("PRAGMA query_only=1");
+					if(sharedCache)
+						statement.execute("PRAGMA read_uncommitted=1");
+				}
+				idleReaders.add(connection);
+			}
+		}
+		catch(SQLException t){
+			close();
+			throw t;
+		}
+	}
+
+	private Connection openConnection(String url) throws SQLException{
+		Connection connection = DriverManager.getConnection(url);
+		if(connection==null)
+			throw new SQLException("Connection to database cannot be established.");
+		connections.add(connection);
+		statementCaches.put(connection, new StatementCache(connection, statementCacheSize, statementCacheHits, statementCacheMisses, metrics, slowQueryLog));
+		try(Statement statement = connection.createStatement()){
+			for(Map.Entry<String,String> pragma:pragmas.entrySet())
+				statement.execute("PRAGMA "+pragma.getKey()+"="+pragma.getValue());
+		}
+		return connection;
+	}
+
+	/**
+	 * Waits for an idle reader connection and leases it to the caller.
+	 * The lease must be closed to return the connection to the pool.
+	 * Reader connections are query-only.
+	 *
+	 * @return A leased connection.
+	 * @throws SQLException If the pool is closed or the thread is interrupted while waiting.
+	 */
+	public PooledConnection acquireReader() throws SQLException{
+		if(closed)
+			throw new SQLException("Connection pool is closed.");
+		Connection connection;
+		long start = System.nanoTime();
+		try{
+			connection = idleReaders.take();
+			metrics.recordReaderWait(System.nanoTime()-start);
+		}
+		catch(InterruptedException t){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection.", t);
+		}
+		return new PooledConnection(this, connection, statementCaches.get(connection));
+	}
+
+	/**
+	 * Waits for exclusive use of the writer connection and leases it to the caller.
+	 * The lease must be closed to release the writer to other threads.
+	 * A thread already holding the writer may acquire it again, in which case the
+	 * connection is released only when the outermost lease is closed.
+	 *
+	 * @return A leased connection.
+	 * @throws SQLException If the pool is closed or the thread is interrupted while waiting.
+	 */
+	public PooledConnection acquireWriter() throws SQLException{
+		if(closed)
+			throw new SQLException("Connection pool is closed.");
+		long start = System.nanoTime();
+		try{
+			writerLock.lockInterruptibly();
+			metrics.recordWriterWait(System.nanoTime()-start);
+		}
+		catch(InterruptedException t){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection.", t);
+		}
+		return new PooledConnection(this, writerConnection, statementCaches.get(writerConnection));
+	}
+
+	/**
+	 * Returns a connection to the pool.
+	 * Any transaction left open by the lessee is rolled back first.
+	 *
+	 * @param connection
+	 */
+	void release(Connection connection){
+		if(connection==writerConnection){
+			try{
+				if(writerLock.getHoldCount()==1){
+					endAbandonedTransaction(connection);
+					statementCaches.get(connection).release();
+				}
+			}
+			finally{
+				writerLock.unlock();
+			}
+			return;
+		}
+		endAbandonedTransaction(connection);
+		statementCaches.get(connection).release();
+		idleReaders.add(connection);
+	}
+
+	private static void endAbandonedTransaction(Connection connection){
+		try{
+			if(!connection.isClosed()&&!connection.getAutoCommit()){
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+		}
+		catch(SQLException t){
+			t.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return The number of times a cached prepared statement has been reused, across all connections.
+	 */
+	public long getStatementCacheHits(){
+		return statementCacheHits.sum();
+	}
+
+	/**
+	 * @return The number of times a statement had to be prepared because it was not cached, across all connections.
+	 */
+	public long getStatementCacheMisses(){
+		return statementCacheMisses.sum();
+	}
+
+	/**
+	 * @return true if the writer connection is query-only as well as the readers.
+	 */
+	public boolean isReadOnly(){
+		return readOnly;
+	}
+
+	/**
+	 * Closes all connections. Connections currently leased are closed out from under their lessees.
+	 */
+	public void close(){
+		closed = true;
+		for(Connection connection:connections){
+			StatementCache statementCache = statementCaches.get(connection);
+			if(statementCache!=null)
+				statementCache.clear();
+			try{
+				connection.close();
+			}
+			catch(SQLException t){
+				t.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.time.ZonedDateTime;
+
+import com.shtick.apps.sh.core.Subject;
+import com.shtick.apps.sh.core.UserID;
+
+/**
+ * Aggregate results of a user's answers to questions on one subject which measure one dimension.
+ *
+ * @author sean.cox
+ *
+ */
+public class DimensionStatistics {
+	private final UserID userID;
+	private final Subject subject;
+	private final String dimension;
+	private final long attempts;
+	private final long pointsEarned;
+	private final long pointsPossible;
+	private final double weightedPointsEarned;
+	private final double weightedPointsPossible;
+	private final Double recentScore;
+	private final ZonedDateTime lastAnswered;
+
+	/**
+	 * @param userID
+	 * @param subject
+	 * @param dimension
+	 * @param attempts
+	 * @param pointsEarned
+	 * @param pointsPossible
+	 * @param weightedPointsEarned
+	 * @param weightedPointsPossible
+	 * @param recentScore
+	 * @param lastAnswered
+	 */
+	public DimensionStatistics(UserID userID, Subject subject, String dimension, long attempts, long pointsEarned,
+			long pointsPossible, double weightedPointsEarned, double weightedPointsPossible, Double recentScore,
+			ZonedDateTime lastAnswered) {
+		super();
+		this.userID = userID;
+		this.subject = subject;
+		this.dimension = dimension;
+		this.attempts = attempts;
+		this.pointsEarned = pointsEarned;
+		this.pointsPossible = pointsPossible;
+		this.weightedPointsEarned = weightedPointsEarned;
+		this.weightedPointsPossible = weightedPointsPossible;
+		this.recentScore = recentScore;
+		this.lastAnswered = lastAnswered;
+	}
+
+	/**
+	 * @return the userID
+	 */
+	public UserID getUserID() {
+		return userID;
+	}
+
+	/**
+	 * @return the subject
+	 */
+	public Subject getSubject() {
+		return subject;
+	}
+
+	/**
+	 * @return The name of the dimension, as found in Question.getQuestionDimensions().
+	 */
+	public String getDimension() {
+		return dimension;
+	}
+
+	/**
+	 * @return The number of answers given to questions measuring this dimension.
+	 */
+	public long getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * @return The total points earned by those answers.
+	 */
+	public long getPointsEarned() {
+		return pointsEarned;
+	}
+
+	/**
+	 * @return The total points available for those answers.
+	 */
+	public long getPointsPossible() {
+		return pointsPossible;
+	}
+
+	/**
+	 * @return The total points earned, each answer weighted by the question's value for this dimension.
+	 */
+	public double getWeightedPointsEarned() {
+		return weightedPointsEarned;
+	}
+
+	/**
+	 * @return The total points available, each answer weighted by the question's value for this dimension.
+	 */
+	public double getWeightedPointsPossible() {
+		return weightedPointsPossible;
+	}
+
+	/**
+	 * @return The weighted fraction of available points earned, or null if no points have been available.
+	 */
+	public Double getScore() {
+		if(weightedPointsPossible<=0)
+			return null;
+		return weightedPointsEarned/weightedPointsPossible;
+	}
+
+	/**
+	 * @return An exponentially weighted moving average of the fraction of points earned per answer, favoring recent answers,
+	 *         or null if no points have been available. This is not rewound when a quiz is deleted.
+	 */
+	public Double getRecentScore() {
+		return recentScore;
+	}
+
+	/**
+	 * @return The time of the most recent answer.
+	 */
+	public ZonedDateTime getLastAnswered() {
+		return lastAnswered;
+	}
+}
@@ -0,0 +1,305 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import com.shtick.apps.sh.core.Answer;
+import com.shtick.apps.sh.core.Subject;
+import com.shtick.apps.sh.core.UserID;
+
+/**
+ * Maintains the dimension_statistics table, which holds running totals of each user's answers
+ * per subject and question dimension, so that mastery can be looked up without reading the user's history.
+ *
+ * Every method must be called within the transaction that inserts or deletes the answers concerned.
+ *
+ * @author sean.cox
+ *
+ */
+class DimensionStatisticsTable {
+	/**
+	 * The weight given to the latest answer in the recent score moving average.
+	 */
+	static final double RECENT_SCORE_WEIGHT = 0.2;
+
+	private static final String COLUMNS = "user_id, subject, dimension, attempts, points_earned, points_possible, weighted_points_earned, weighted_points_possible, recent_score, last_answered, last_answered_zone";
+
+	/**
+	 * Prepares statements, such as PooledConnection::prepareStatement.
+	 * Statements are owned by the source and are not closed.
+	 */
+	@FunctionalInterface
+	interface StatementSource {
+		/**
+		 * @param sql
+		 * @return A prepared statement for the given SQL.
+		 * @throws SQLException
+		 */
+		PreparedStatement prepareStatement(String sql) throws SQLException;
+	}
+
+	private static class Key {
+		private final String userID;
+		private final String subject;
+		private final String dimension;
+
+		public Key(String userID, String subject, String dimension) {
+			this.userID = userID;
+			this.subject = subject;
+			this.dimension = dimension;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(userID, subject, dimension);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key))
+				return false;
+			Key other = (Key)obj;
+			return userID.equals(other.userID)&&subject.equals(other.subject)&&dimension.equals(other.dimension);
+		}
+	}
+
+	private static class Row {
+		long attempts = 0;
+		long pointsEarned = 0;
+		long pointsPossible = 0;
+		double weightedPointsEarned = 0;
+		double weightedPointsPossible = 0;
+		Double recentScore = null;
+		long lastAnswered = Long.MIN_VALUE;
+		String lastAnsweredZone = null;
+	}
+
+	/**
+	 * Loads the current row for a key, returning an empty row if there is none.
+	 */
+	@FunctionalInterface
+	private interface RowLoader {
+		Row load(Key key) throws SQLException;
+	}
+
+	/**
+	 * Adds newly inserted answers to the statistics. Answers are applied to the recent score in the order given.
+	 *
+	 * @param source
+	 * @param answers
+	 * @throws SQLException
+	 */
+	public static void addAnswers(StatementSource source, Collection<Answer> answers) throws SQLException{
+		String sql = "SELECT qz.user_id, qs.subject, qs.dimensions, qs.points " +
+				"FROM questions qs JOIN quizes qz ON qz.id = qs.quiz_id " +
+				"WHERE qs.id = ?";
+		LinkedHashMap<Key,Row> rows = new LinkedHashMap<>();
+		RowLoader loader = (key)->loadRow(source, key);
+		PreparedStatement statement = source.prepareStatement(sql);
+		for(Answer answer:answers){
+			Keys.bind(statement, 1, answer.getQuestionID());
+			try(ResultSet resultSet = statement.executeQuery()){
+				if(!resultSet.next())
+					continue;
+				add(rows, loader, Keys.read(resultSet, 1), resultSet.getString(2), resultSet.getBytes(3), resultSet.getInt(4),
+						answer.getPoints(), answer.getTimeAnswered().toInstant().toEpochMilli(), answer.getTimeAnswered().getZone().getId());
+			}
+		}
+		writeRows(source, rows);
+	}
+
+	/**
+	 * Removes the answers to the given quizes from the statistics. Must be called before the answers are deleted.
+	 *
+	 * @param source
+	 * @param quizIDs
+	 * @throws SQLException
+	 */
+	public static void removeQuizes(StatementSource source, Collection<String> quizIDs) throws SQLException{
+		String sql = "SELECT qz.user_id, qs.subject, qs.dimensions, qs.points, a.points " +
+				"FROM quizes qz JOIN questions qs ON qs.quiz_id = qz.id JOIN answers a ON a.question_id = qs.id " +
+				"WHERE qz.id = ?";
+		LinkedHashMap<Key,Row> rows = new LinkedHashMap<>();
+		PreparedStatement statement = source.prepareStatement(sql);
+		for(String quizID:quizIDs){
+			Keys.bind(statement, 1, quizID);
+			try(ResultSet resultSet = statement.executeQuery()){
+				while(resultSet.next()){
+					String userID = Keys.read(resultSet, 1);
+					String subject = resultSet.getString(2);
+					int questionPoints = resultSet.getInt(4);
+					int points = resultSet.getInt(5);
+					for(Map.Entry<String,Float> dimension:DimensionsCodec.decode(resultSet.getBytes(3)).entrySet()){
+						Key key = new Key(userID, subject, dimension.getKey());
+						Row row = rows.get(key);
+						if(row==null){
+							row = loadRow(source, key);
+							rows.put(key, row);
+						}
+						row.attempts--;
+						row.pointsEarned -= points;
+						row.pointsPossible -= questionPoints;
+						row.weightedPointsEarned -= points*dimension.getValue();
+						row.weightedPointsPossible -= questionPoints*dimension.getValue();
+					}
+				}
+			}
+		}
+		writeRows(source, rows);
+	}
+
+	/**
+	 * Removes all statistics for a user.
+	 *
+	 * @param source
+	 * @param userID
+	 * @throws SQLException
+	 */
+	public static void removeUser(StatementSource source, String userID) throws SQLException{
+		PreparedStatement statement = source.prepareStatement("DELETE FROM dimension_statistics WHERE user_id = ?");
+		Keys.bind(statement, 1, userID);
+		statement.executeUpdate();
+	}
+
+	/**
+	 * @param source
+	 * @param userID
+	 * @param subject
+	 * @return The statistics for each dimension of the subject the user has answered questions on.
+	 * @throws SQLException
+	 */
+	public static Collection<DimensionStatistics> read(StatementSource source, UserID userID, Subject subject) throws SQLException{
+		PreparedStatement statement = source.prepareStatement("SELECT "+COLUMNS+" FROM dimension_statistics WHERE user_id = ? AND subject = ?");
+		Keys.bind(statement, 1, userID);
+		statement.setString(2, subject.toString());
+		ArrayList<DimensionStatistics> retval = new ArrayList<>();
+		try(ResultSet resultSet = statement.executeQuery()){
+			while(resultSet.next())
+				retval.add(getDimensionStatisticsFromResultSetRow(userID, subject, resultSet));
+		}
+		return retval;
+	}
+
+	/**
+	 * @param source
+	 * @param userID
+	 * @param subject
+	 * @param dimension
+	 * @return The statistics for the dimension, or null if the user has not answered any questions measuring it.
+	 * @throws SQLException
+	 */
+	public static DimensionStatistics read(StatementSource source, UserID userID, Subject subject, String dimension) throws SQLException{
+		PreparedStatement statement = source.prepareStatement("SELECT "+COLUMNS+" FROM dimension_statistics WHERE user_id = ? AND subject = ? AND dimension = ?");
+		Keys.bind(statement, 1, userID);
+		statement.setString(2, subject.toString());
+		statement.setString(3, dimension);
+		try(ResultSet resultSet = statement.executeQuery()){
+			if(!resultSet.next())
+				return null;
+			return getDimensionStatisticsFromResultSetRow(userID, subject, resultSet);
+		}
+	}
+
+	private static DimensionStatistics getDimensionStatisticsFromResultSetRow(UserID userID, Subject subject, ResultSet resultSet) throws SQLException{
+		double recentScore = resultSet.getDouble(9);
+		return new DimensionStatistics(userID, subject, resultSet.getString(3), resultSet.getLong(4), resultSet.getLong(5), resultSet.getLong(6),
+				resultSet.getDouble(7), resultSet.getDouble(8), resultSet.wasNull()?null:recentScore, Timestamps.read(resultSet, 10));
+	}
+
+	private static void add(Map<Key,Row> rows, RowLoader loader, String userID, String subject, byte[] dimensions, int questionPoints, int points, long timeAnswered, String timeAnsweredZone) throws SQLException{
+		for(Map.Entry<String,Float> dimension:DimensionsCodec.decode(dimensions).entrySet()){
+			Key key = new Key(userID, subject, dimension.getKey());
+			Row row = rows.get(key);
+			if(row==null){
+				row = loader.load(key);
+				rows.put(key, row);
+			}
+			row.attempts++;
+			row.pointsEarned += points;
+			row.pointsPossible += questionPoints;
+			row.weightedPointsEarned += points*dimension.getValue();
+			row.weightedPointsPossible += questionPoints*dimension.getValue();
+			if(questionPoints>0){
+				double score = points/(double)questionPoints;
+				row.recentScore = (row.recentScore==null)?score:row.recentScore+RECENT_SCORE_WEIGHT*(score-row.recentScore);
+			}
+			if(timeAnswered>=row.lastAnswered){
+				row.lastAnswered = timeAnswered;
+				row.lastAnsweredZone = timeAnsweredZone;
+			}
+		}
+	}
+
+	private static Row loadRow(StatementSource source, Key key) throws SQLException{
+		PreparedStatement statement = source.prepareStatement("SELECT "+COLUMNS+" FROM dimension_statistics WHERE user_id = ? AND subject = ? AND dimension = ?");
+		Keys.bind(statement, 1, key.userID);
+		statement.setString(2, key.subject);
+		statement.setString(3, key.dimension);
+		Row retval = new Row();
+		try(ResultSet resultSet = statement.executeQuery()){
+			if(!resultSet.next())
+				return retval;
+			retval.attempts = resultSet.getLong(4);
+			retval.pointsEarned = resultSet.getLong(5);
+			retval.pointsPossible = resultSet.getLong(6);
+			retval.weightedPointsEarned = resultSet.getDouble(7);
+			retval.weightedPointsPossible = resultSet.getDouble(8);
+			double recentScore = resultSet.getDouble(9);
+			retval.recentScore = resultSet.wasNull()?null:recentScore;
+			retval.lastAnswered = resultSet.getLong(10);
+			retval.lastAnsweredZone = resultSet.getString(11);
+		}
+		return retval;
+	}
+
+	private static void writeRows(StatementSource source, Map<Key,Row> rows) throws SQLException{
+		if(rows.isEmpty())
+			return;
+		PreparedStatement replace = source.prepareStatement("INSERT OR REPLACE INTO dimension_statistics ("+COLUMNS+") VALUES (?,?,?,?,?,?,?,?,?,?,?)");
+		PreparedStatement delete = source.prepareStatement("DELETE FROM dimension_statistics WHERE user_id = ? AND subject = ? AND dimension = ?");
+		boolean replaced = false;
+		boolean deleted = false;
+		for(Map.Entry<Key,Row> entry:rows.entrySet()){
+			Key key = entry.getKey();
+			Row row = entry.getValue();
+			if(row.attempts<=0){
+				Keys.bind(delete, 1, key.userID);
+				delete.setString(2, key.subject);
+				delete.setString(3, key.dimension);
+				delete.addBatch();
+				deleted = true;
+				continue;
+			}
+			Keys.bind(replace, 1, key.userID);
+			replace.setString(2, key.subject);
+			replace.setString(3, key.dimension);
+			replace.setLong(4, row.attempts);
+			replace.setLong(5, row.pointsEarned);
+			replace.setLong(6, row.pointsPossible);
+			replace.setDouble(7, row.weightedPointsEarned);
+			replace.setDouble(8, row.weightedPointsPossible);
+			if(row.recentScore==null)
+				replace.setNull(9, Types.REAL);
+			else
+				replace.setDouble(9, row.recentScore);
+			replace.setLong(10, row.lastAnswered);
+			replace.setString(11, row.lastAnsweredZone);
+			replace.addBatch();
+			replaced = true;
+		}
+		if(replaced)
+			replace.executeBatch();
+		if(deleted)
+			delete.executeBatch();
+	}
+}
@@ -0,0 +1,158 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.shtick.util.tokenizers.TokenTree;
+import com.shtick.util.tokenizers.json.JSONToken;
+import com.shtick.util.tokenizers.json.JSONTokenizer;
+import com.shtick.util.tokenizers.json.NumberToken;
+import com.shtick.util.tokenizers.json.ObjectPropertyToken;
+import com.shtick.util.tokenizers.json.ObjectToken;
+
+/**
+ * Encodes and decodes the question dimensions map stored in questions.dimensions.
+ *
+ * Dimensions are stored as a BLOB consisting of a format byte followed by one entry per dimension,
+ * each being a two byte big-endian length, that many bytes of UTF-8 encoded name, and the four byte
+ * big-endian IEEE 754 representation of the value.
+ *
+ * Rows written before this format was introduced hold a JSON object as TEXT. These are recognized by
+ * their first byte, which can never be the format byte, and are decoded with the JSON tokenizer.
+ *
+ * @author sean.cox
+ *
+ */
+class DimensionsCodec {
+	private static final byte FORMAT_BINARY_V1 = 1;
+	private static final JSONTokenizer jsonTokenizer = new JSONTokenizer();
+
+	/**
+	 * @param dimensions
+	 * @return The encoded dimensions.
+	 * @throws IllegalArgumentException If a dimension name is too long to be encoded or a value is null.
+	 */
+	public static byte[] encode(Map<String,Float> dimensions) throws IllegalArgumentException{
+		int size = 1;
+		byte[][] names = new byte[dimensions.size()][];
+		int i=0;
+		for(Map.Entry<String,Float> dimension:dimensions.entrySet()){
+			if(dimension.getValue()==null)
+				throw new IllegalArgumentException("Dimension values cannot be null.");
+			names[i] = dimension.getKey().getBytes(StandardCharsets.UTF_8);
+			if(names[i].length>0xFFFF)
+				throw new IllegalArgumentException("Dimension name is too long: "+dimension.getKey());
+			size += 2+names[i].length+4;
+			i++;
+		}
+		byte[] retval = new byte[size];
+		retval[0] = FORMAT_BINARY_V1;
+		int offset = 1;
+		i=0;
+		for(Map.Entry<String,Float> dimension:dimensions.entrySet()){
+			byte[] name = names[i++];
+			retval[offset++] = (byte)(name.length>>>8);
+			retval[offset++] = (byte)name.length;
+			System.arraycopy(name, 0, retval, offset, name.length);
+			offset += name.length;
+			int bits = Float.floatToIntBits(dimension.getValue());
+			retval[offset++] = (byte)(bits>>>24);
+			retval[offset++] = (byte)(bits>>>16);
+			retval[offset++] = (byte)(bits>>>8);
+			retval[offset++] = (byte)bits;
+		}
+		return retval;
+	}
+
+	/**
+	 * @param encoded The column value, in either the binary or legacy JSON format.
+	 * @return The decoded dimensions.
+	 * @throws IllegalArgumentException If the value cannot be decoded.
+	 */
+	public static Map<String,Float> decode(byte[] encoded) throws IllegalArgumentException{
+		if((encoded==null)||(encoded.length==0))
+			return new HashMap<>();
+		if(encoded[0]!=FORMAT_BINARY_V1)
+			return decodeJSON(new String(encoded, StandardCharsets.UTF_8));
+
+		// Count the entries first so the map never needs to be resized.
+		int count = 0;
+		int offset = 1;
+		while(offset<encoded.length){
+			if(offset+2>encoded.length)
+				throw new IllegalArgumentException("Truncated dimensions.");
+			offset += 2+(((encoded[offset]&0xFF)<<8)|(encoded[offset+1]&0xFF))+4;
+			count++;
+		}
+		if(offset!=encoded.length)
+			throw new IllegalArgumentException("Truncated dimensions.");
+		HashMap<String,Float> retval = new HashMap<>((int)(count/0.75f)+1);
+		offset = 1;
+		while(offset<encoded.length){
+			int length = ((encoded[offset]&0xFF)<<8)|(encoded[offset+1]&0xFF);
+			offset += 2;
+			String name = new String(encoded, offset, length, StandardCharsets.UTF_8);
+			offset += length;
+			int bits = ((encoded[offset]&0xFF)<<24)|((encoded[offset+1]&0xFF)<<16)|((encoded[offset+2]&0xFF)<<8)|(encoded[offset+3]&0xFF);
+			offset += 4;
+			retval.put(name, Float.intBitsToFloat(bits));
+		}
+		return retval;
+	}
+
+	/**
+	 * Decodes dimensions stored in the legacy JSON format.
+	 *
+	 * @param jsonMap
+	 * @return The decoded dimensions.
+	 * @throws IllegalArgumentException If the value is not a JSON object of numbers.
+	 */
+	static Map<String,Float> decodeJSON(String jsonMap) throws IllegalArgumentException{
+		TokenTree<JSONToken> tokenTree;
+		jsonMap=jsonMap.trim();
+		if(jsonMap.length()==0)
+			return new HashMap<>();
+		try{
+			tokenTree = jsonTokenizer.tokenize(new StringReader(jsonMap));
+		}
+		catch(IOException t){
+			throw new RuntimeException(t);
+		}
+
+		Iterator<JSONToken> iter = tokenTree.iterator();
+		if(!iter.hasNext())
+			return null;
+		JSONToken token = iter.next();
+		if(!(token instanceof ObjectToken))
+			throw new IllegalArgumentException("Input was not a valid JSON encoded object.");
+		if(iter.hasNext())
+			throw new IllegalArgumentException("Extra data was found in the input.");
+		if(tokenTree.getAllIssues().size()>0)
+			throw new IllegalArgumentException("Syntax errors in JSON.");
+
+		// Turn tokens into map.
+		ObjectToken objectToken = (ObjectToken)token;
+		List<ObjectPropertyToken> properties = objectToken.getObjectPropertyTokens();
+		HashMap<String,Float> retval = new HashMap<>(properties.size());
+		String label;
+		JSONToken value;
+		Float numericValue;
+		for(ObjectPropertyToken property:properties){
+			label=property.getLabel().getRepresentedString();
+			value=property.getValue();
+			if(!(value instanceof NumberToken))
+				throw new IllegalArgumentException("Object contains non-numeric properties.");
+			numericValue = Float.valueOf(((NumberToken)value).toString());
+			retval.put(label,numericValue);
+		}
+		return retval;
+	}
+}
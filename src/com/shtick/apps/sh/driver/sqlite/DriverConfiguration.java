@@ -0,0 +1,657 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Settings used to construct a SQLiteDriver.
+ *
+ * @author sean.cox
+ *
+ */
+public class DriverConfiguration {
+	/**
+	 * The prefix shared by all configuration property names.
+	 */
+	public static final String PROPERTY_PREFIX = "sh.driver.sqlite.";
+	/**
+	 * The property specifying the JDBC URL of the database.
+	 */
+	public static final String PROPERTY_DATABASE_URL = PROPERTY_PREFIX+"databaseURL";
+	/**
+	 * The property naming the PragmaProfile applied to each connection, such as default, durable, fast or memory.
+	 */
+	public static final String PROPERTY_PRAGMA_PROFILE = PROPERTY_PREFIX+"pragmaProfile";
+	/**
+	 * The prefix of properties which override a single PRAGMA of the profile, such as sh.driver.sqlite.pragma.mmap_size.
+	 * Only the PRAGMAs in SUPPORTED_PRAGMAS may be set.
+	 */
+	public static final String PROPERTY_PRAGMA_PREFIX = PROPERTY_PREFIX+"pragma.";
+	/**
+	 * The PRAGMAs which may be overridden.
+	 */
+	public static final List<String> SUPPORTED_PRAGMAS = Collections.unmodifiableList(Arrays.asList("busy_timeout", "cache_size", "mmap_size", "page_size", "synchronous", "temp_store"));
+	/**
+	 * The property specifying whether the database is opened read-only.
+	 */
+	public static final String PROPERTY_READ_ONLY = PROPERTY_PREFIX+"readOnly";
+	/**
+	 * The property specifying the directory snapshots of the database are written to.
+	 */
+	public static final String PROPERTY_SNAPSHOT_DIRECTORY = PROPERTY_PREFIX+"snapshotDirectory";
+	/**
+	 * The property specifying how often, in minutes, a snapshot of the database is taken.
+	 */
+	public static final String PROPERTY_SNAPSHOT_INTERVAL_MINUTES = PROPERTY_PREFIX+"snapshotIntervalMinutes";
+	/**
+	 * The property specifying the age, in days, at which quizes are moved to the archive database.
+	 */
+	public static final String PROPERTY_RETENTION_DAYS = PROPERTY_PREFIX+"retentionDays";
+	/**
+	 * The property specifying the maximum number of free pages returned to the file system per maintenance step.
+	 */
+	public static final String PROPERTY_INCREMENTAL_VACUUM_PAGES = PROPERTY_PREFIX+"incrementalVacuumPages";
+	/**
+	 * The property specifying how often, in minutes, background maintenance runs.
+	 */
+	public static final String PROPERTY_MAINTENANCE_INTERVAL_MINUTES = PROPERTY_PREFIX+"maintenanceIntervalMinutes";
+	/**
+	 * The property specifying the number of databases users' data is divided between.
+	 */
+	public static final String PROPERTY_SHARD_COUNT = PROPERTY_PREFIX+"shardCount";
+	/**
+	 * The property specifying the number of reader connections held open by the driver.
+	 */
+	public static final String PROPERTY_READER_COUNT = PROPERTY_PREFIX+"readerCount";
+	/**
+	 * The property specifying the maximum number of prepared statements cached for each connection.
+	 */
+	public static final String PROPERTY_STATEMENT_CACHE_SIZE = PROPERTY_PREFIX+"statementCacheSize";
+	/**
+	 * The property specifying the number of quizes removed per transaction when deleting a user.
+	 */
+	public static final String PROPERTY_DELETE_CHUNK_SIZE = PROPERTY_PREFIX+"deleteChunkSize";
+	/**
+	 * The property specifying the number of decoded quiz designs cached by the driver.
+	 */
+	public static final String PROPERTY_QUIZ_DESIGN_CACHE_SIZE = PROPERTY_PREFIX+"quizDesignCacheSize";
+	/**
+	 * The property specifying the number of pre-generated quizes held for each quiz design.
+	 */
+	public static final String PROPERTY_QUIZ_POOL_SIZE = PROPERTY_PREFIX+"quizPoolSize";
+	/**
+	 * The property specifying the number of quiz designs for which quizes are pre-generated.
+	 */
+	public static final String PROPERTY_QUIZ_POOL_DESIGNS = PROPERTY_PREFIX+"quizPoolDesigns";
+	/**
+	 * The property specifying whether answers are queued and saved in batches by a background thread.
+	 */
+	public static final String PROPERTY_ASYNC_ANSWERS = PROPERTY_PREFIX+"asyncAnswers";
+	/**
+	 * The property specifying the maximum number of queued answers committed per transaction.
+	 */
+	public static final String PROPERTY_ANSWER_BATCH_SIZE = PROPERTY_PREFIX+"answerBatchSize";
+	/**
+	 * The property specifying the maximum time, in milliseconds, a queued answer waits before being saved.
+	 */
+	public static final String PROPERTY_ANSWER_MAX_LATENCY_MILLIS = PROPERTY_PREFIX+"answerMaxLatencyMillis";
+	/**
+	 * The property specifying how often, in seconds, the driver's metrics are logged.
+	 */
+	public static final String PROPERTY_METRICS_LOG_INTERVAL_SECONDS = PROPERTY_PREFIX+"metricsLogIntervalSeconds";
+	/**
+	 * The property specifying how long, in milliseconds, a statement must run before it is logged as slow.
+	 */
+	public static final String PROPERTY_SLOW_QUERY_THRESHOLD_MILLIS = PROPERTY_PREFIX+"slowQueryThresholdMillis";
+	/**
+	 * The property specifying whether bound parameter values are included when slow statements are logged.
+	 */
+	public static final String PROPERTY_SLOW_QUERY_LOG_PARAMETERS = PROPERTY_PREFIX+"slowQueryLogParameters";
+	/**
+	 * The property specifying the number of threads used to run subject question generators.
+	 */
+	public static final String PROPERTY_GENERATOR_THREADS = PROPERTY_PREFIX+"generatorThreads";
+	/**
+	 * The property specifying whether subject question generators run on virtual threads when the JVM supports them.
+	 */
+	public static final String PROPERTY_VIRTUAL_GENERATOR_THREADS = PROPERTY_PREFIX+"virtualGeneratorThreads";
+
+	private String databaseURL = null;
+	private PragmaProfile pragmaProfile = PragmaProfile.DEFAULT;
+	private final LinkedHashMap<String,String> pragmaOverrides = new LinkedHashMap<>();
+	private boolean readOnly = false;
+	private String snapshotDirectory = null;
+	private int snapshotIntervalMinutes = 0;
+	private int retentionDays = 0;
+	private int incrementalVacuumPages = 0;
+	private int maintenanceIntervalMinutes = 60;
+	private int shardCount = 0;
+	private int readerCount = Runtime.getRuntime().availableProcessors();
+	private int statementCacheSize = 64;
+	private int deleteChunkSize = 50;
+	private int quizDesignCacheSize = 256;
+	private int quizPoolSize = 0;
+	private int quizPoolDesigns = 256;
+	private boolean asyncAnswers = false;
+	private int answerBatchSize = 256;
+	private int answerMaxLatencyMillis = 20;
+	private int metricsLogIntervalSeconds = 0;
+	private int slowQueryThresholdMillis = 0;
+	private boolean slowQueryLogParameters = false;
+	private int generatorThreads = Runtime.getRuntime().availableProcessors();
+	private boolean virtualGeneratorThreads = true;
+
+	/**
+	 * Creates a configuration with default settings.
+	 */
+	public DriverConfiguration() {
+		super();
+	}
+
+	/**
+	 *
+	 * @param properties A lookup for property values, such as System::getProperty or BundleContext::getProperty. Missing properties should be returned as null.
+	 * @return A configuration with the default settings overridden by any properties found.
+	 * @throws IllegalArgumentException If a property is present but has an invalid value.
+	 */
+	public static DriverConfiguration fromProperties(Function<String,String> properties) throws IllegalArgumentException{
+		DriverConfiguration retval = new DriverConfiguration();
+		retval.setDatabaseURL(properties.apply(PROPERTY_DATABASE_URL));
+		String pragmaProfile = properties.apply(PROPERTY_PRAGMA_PROFILE);
+		if(pragmaProfile!=null)
+			retval.setPragmaProfile(PragmaProfile.forName(pragmaProfile));
+		for(String pragma:SUPPORTED_PRAGMAS)
+			retval.setPragma(pragma, properties.apply(PROPERTY_PRAGMA_PREFIX+pragma));
+		retval.setReadOnly(getBooleanProperty(properties, PROPERTY_READ_ONLY, retval.isReadOnly()));
+		retval.setSnapshotDirectory(properties.apply(PROPERTY_SNAPSHOT_DIRECTORY));
+		retval.setSnapshotIntervalMinutes(getIntProperty(properties, PROPERTY_SNAPSHOT_INTERVAL_MINUTES, retval.getSnapshotIntervalMinutes()));
+		retval.setRetentionDays(getIntProperty(properties, PROPERTY_RETENTION_DAYS, retval.getRetentionDays()));
+		retval.setIncrementalVacuumPages(getIntProperty(properties, PROPERTY_INCREMENTAL_VACUUM_PAGES, retval.getIncrementalVacuumPages()));
+		retval.setMaintenanceIntervalMinutes(getIntProperty(properties, PROPERTY_MAINTENANCE_INTERVAL_MINUTES, retval.getMaintenanceIntervalMinutes()));
+		retval.setShardCount(getIntProperty(properties, PROPERTY_SHARD_COUNT, retval.getShardCount()));
+		retval.setReaderCount(getIntProperty(properties, PROPERTY_READER_COUNT, retval.getReaderCount()));
+		retval.setStatementCacheSize(getIntProperty(properties, PROPERTY_STATEMENT_CACHE_SIZE, retval.getStatementCacheSize()));
+		retval.setDeleteChunkSize(getIntProperty(properties, PROPERTY_DELETE_CHUNK_SIZE, retval.getDeleteChunkSize()));
+		retval.setQuizDesignCacheSize(getIntProperty(properties, PROPERTY_QUIZ_DESIGN_CACHE_SIZE, retval.getQuizDesignCacheSize()));
+		retval.setQuizPoolSize(getIntProperty(properties, PROPERTY_QUIZ_POOL_SIZE, retval.getQuizPoolSize()));
+		retval.setQuizPoolDesigns(getIntProperty(properties, PROPERTY_QUIZ_POOL_DESIGNS, retval.getQuizPoolDesigns()));
+		retval.setAsyncAnswers(getBooleanProperty(properties, PROPERTY_ASYNC_ANSWERS, retval.isAsyncAnswers()));
+		retval.setAnswerBatchSize(getIntProperty(properties, PROPERTY_ANSWER_BATCH_SIZE, retval.getAnswerBatchSize()));
+		retval.setAnswerMaxLatencyMillis(getIntProperty(properties, PROPERTY_ANSWER_MAX_LATENCY_MILLIS, retval.getAnswerMaxLatencyMillis()));
+		retval.setMetricsLogIntervalSeconds(getIntProperty(properties, PROPERTY_METRICS_LOG_INTERVAL_SECONDS, retval.getMetricsLogIntervalSeconds()));
+		retval.setSlowQueryThresholdMillis(getIntProperty(properties, PROPERTY_SLOW_QUERY_THRESHOLD_MILLIS, retval.getSlowQueryThresholdMillis()));
+		retval.setSlowQueryLogParameters(getBooleanProperty(properties, PROPERTY_SLOW_QUERY_LOG_PARAMETERS, retval.isSlowQueryLogParameters()));
+		retval.setGeneratorThreads(getIntProperty(properties, PROPERTY_GENERATOR_THREADS, retval.getGeneratorThreads()));
+		retval.setVirtualGeneratorThreads(getBooleanProperty(properties, PROPERTY_VIRTUAL_GENERATOR_THREADS, retval.isVirtualGeneratorThreads()));
+		return retval;
+	}
+
+	/**
+	 * @return The JDBC URL of the database, or null to use the PRAGMA profile's default database,
+	 *         which is sh.quiz.db in the user's application data directory for all but the memory profile.
+	 */
+	public String getDatabaseURL() {
+		return databaseURL;
+	}
+
+	/**
+	 * @param databaseURL The JDBC URL of the database, such as jdbc:sqlite:/path/to/sh.quiz.db, or null to use the default location.
+	 */
+	public void setDatabaseURL(String databaseURL) {
+		this.databaseURL = databaseURL;
+	}
+
+	/**
+	 * @return The profile supplying the PRAGMA settings applied to each connection. Defaults to PragmaProfile.DEFAULT.
+	 */
+	public PragmaProfile getPragmaProfile() {
+		return pragmaProfile;
+	}
+
+	/**
+	 * @param pragmaProfile The profile supplying the PRAGMA settings applied to each connection.
+	 * @throws IllegalArgumentException If pragmaProfile is null.
+	 */
+	public void setPragmaProfile(PragmaProfile pragmaProfile) throws IllegalArgumentException{
+		if(pragmaProfile==null)
+			throw new IllegalArgumentException("PRAGMA profile cannot be null.");
+		this.pragmaProfile = pragmaProfile;
+	}
+
+	/**
+	 * Overrides a single PRAGMA of the profile.
+	 * Note that page_size only takes effect when the database is created.
+	 *
+	 * @param name One of SUPPORTED_PRAGMAS.
+	 * @param value The value, such as 268435456 or NORMAL, or null to use the profile's value.
+	 * @throws IllegalArgumentException If the PRAGMA is not supported, or the value is not a plain number or keyword.
+	 */
+	public void setPragma(String name, String value) throws IllegalArgumentException{
+		if(!SUPPORTED_PRAGMAS.contains(name))
+			throw new IllegalArgumentException("Unsupported PRAGMA: "+name);
+		if(value==null){
+			pragmaOverrides.remove(name);
+			return;
+		}
+		value = value.trim();
+		// Values are written into the PRAGMA statement, so only plain numbers and keywords are accepted.
+		if(!value.matches("-?[A-Za-z0-9_]+"))
+			throw new IllegalArgumentException("Invalid value for PRAGMA "+name+": "+value);
+		pragmaOverrides.put(name, value);
+	}
+
+	/**
+	 * @return The PRAGMA values applied to each connection, by PRAGMA name: the profile's settings with any overrides applied.
+	 */
+	public Map<String,String> getPragmas() {
+		LinkedHashMap<String,String> retval = new LinkedHashMap<>(pragmaProfile.getPragmas());
+		retval.putAll(pragmaOverrides);
+		return Collections.unmodifiableMap(retval);
+	}
+
+	/**
+	 * @return true if the database is opened read-only, as it is for a view of a snapshot. Defaults to false.
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * A read-only driver does not upgrade the database, and fails with an IOException on any call which would write to it.
+	 * Its database must already be at the current schema version.
+	 *
+	 * @param readOnly true if the database should be opened read-only.
+	 */
+	public void setReadOnly(boolean readOnly) {
+		this.readOnly = readOnly;
+	}
+
+	/**
+	 * @return The directory snapshots of the database are written to, or null to write them alongside the database.
+	 */
+	public String getSnapshotDirectory() {
+		return snapshotDirectory;
+	}
+
+	/**
+	 * @param snapshotDirectory The directory snapshots of the database are written to, or null to write them alongside the database.
+	 *                          A directory must be given to take snapshots of an in-memory database.
+	 */
+	public void setSnapshotDirectory(String snapshotDirectory) {
+		this.snapshotDirectory = snapshotDirectory;
+	}
+
+	/**
+	 * @return How often, in minutes, a snapshot of the database is taken in the background.
+	 *         Defaults to 0, in which case snapshots are only taken on request.
+	 */
+	public int getSnapshotIntervalMinutes() {
+		return snapshotIntervalMinutes;
+	}
+
+	/**
+	 * @param snapshotIntervalMinutes How often, in minutes, a snapshot of the database is taken. 0 disables scheduled snapshots.
+	 * @throws IllegalArgumentException If snapshotIntervalMinutes is negative.
+	 */
+	public void setSnapshotIntervalMinutes(int snapshotIntervalMinutes) throws IllegalArgumentException{
+		if(snapshotIntervalMinutes<0)
+			throw new IllegalArgumentException("Snapshot interval cannot be negative.");
+		this.snapshotIntervalMinutes = snapshotIntervalMinutes;
+	}
+
+	/**
+	 * @return The age, in days, at which quizes are moved to the archive database.
+	 *         Defaults to 0, in which case quizes are kept in the live database until deleted.
+	 */
+	public int getRetentionDays() {
+		return retentionDays;
+	}
+
+	/**
+	 * Quizes older than this, along with their questions and answers, are moved by background maintenance
+	 * to an archive database named after the database URL, so that sh.quiz.db is archived to sh.quiz.archive.db.
+	 * Dimension statistics continue to include archived answers.
+	 * Retention cannot be used with an in-memory database.
+	 *
+	 * @param retentionDays The age, in days, at which quizes are archived, or 0 to keep them in the live database.
+	 * @throws IllegalArgumentException If retentionDays is negative.
+	 */
+	public void setRetentionDays(int retentionDays) throws IllegalArgumentException{
+		if(retentionDays<0)
+			throw new IllegalArgumentException("Retention days cannot be negative.");
+		this.retentionDays = retentionDays;
+	}
+
+	/**
+	 * @return The maximum number of free pages returned to the file system per maintenance step.
+	 *         Defaults to 0, in which case the database file never shrinks.
+	 */
+	public int getIncrementalVacuumPages() {
+		return incrementalVacuumPages;
+	}
+
+	/**
+	 * When enabled, the database is switched to incremental auto-vacuum, which rebuilds an existing database once when it is next opened.
+	 * Background maintenance then frees pages in steps of this size, releasing the writer between steps, until none are left.
+	 *
+	 * @param incrementalVacuumPages The maximum number of pages freed per step, or 0 to disable incremental vacuum.
+	 * @throws IllegalArgumentException If incrementalVacuumPages is negative.
+	 */
+	public void setIncrementalVacuumPages(int incrementalVacuumPages) throws IllegalArgumentException{
+		if(incrementalVacuumPages<0)
+			throw new IllegalArgumentException("Incremental vacuum pages cannot be negative.");
+		this.incrementalVacuumPages = incrementalVacuumPages;
+	}
+
+	/**
+	 * @return How often, in minutes, background maintenance runs when retention or incremental vacuum is enabled. Defaults to 60.
+	 */
+	public int getMaintenanceIntervalMinutes() {
+		return maintenanceIntervalMinutes;
+	}
+
+	/**
+	 * @param maintenanceIntervalMinutes How often, in minutes, background maintenance runs. Must be at least 1.
+	 * @throws IllegalArgumentException If maintenanceIntervalMinutes is less than 1.
+	 */
+	public void setMaintenanceIntervalMinutes(int maintenanceIntervalMinutes) throws IllegalArgumentException{
+		if(maintenanceIntervalMinutes<1)
+			throw new IllegalArgumentException("Maintenance interval must be at least 1 minute.");
+		this.maintenanceIntervalMinutes = maintenanceIntervalMinutes;
+	}
+
+	/**
+	 * @return The number of shard databases users' quiz designs, quizes, questions and answers are divided between,
+	 *         with users themselves held by the database at the database URL. Defaults to 0, which keeps everything in one database.
+	 */
+	public int getShardCount() {
+		return shardCount;
+	}
+
+	/**
+	 * Each shard is a separate database with its own writer, so that users in different shards can be written to concurrently.
+	 * Shards are named after the database URL, so that sh.quiz.db is sharded into sh.quiz-shard-0.db, sh.quiz-shard-1.db, and so on.
+	 * The number of shards is fixed once a database has been written to, and a database created without sharding cannot be sharded later.
+	 *
+	 * @param shardCount The number of shard databases, or 0 to keep everything in one database.
+	 * @throws IllegalArgumentException If shardCount is negative.
+	 */
+	public void setShardCount(int shardCount) throws IllegalArgumentException{
+		if(shardCount<0)
+			throw new IllegalArgumentException("Shard count cannot be negative.");
+		this.shardCount = shardCount;
+	}
+
+	/**
+	 * @return The number of reader connections held open for each database, in addition to its single writer connection.
+	 *         This bounds the number of queries that can run concurrently on a database. Defaults to the number of available processors.
+	 */
+	public int getReaderCount() {
+		return readerCount;
+	}
+
+	/**
+	 * @param readerCount The number of reader connections held open by the driver. Must be at least 1.
+	 * @throws IllegalArgumentException If readerCount is less than 1.
+	 */
+	public void setReaderCount(int readerCount) throws IllegalArgumentException{
+		if(readerCount<1)
+			throw new IllegalArgumentException("Reader count must be at least 1.");
+		this.readerCount = readerCount;
+	}
+
+	/**
+	 * @return The maximum number of prepared statements cached for each connection.
+	 */
+	public int getStatementCacheSize() {
+		return statementCacheSize;
+	}
+
+	/**
+	 * @param statementCacheSize The maximum number of prepared statements cached for each connection. Must be at least 1.
+	 * @throws IllegalArgumentException If statementCacheSize is less than 1.
+	 */
+	public void setStatementCacheSize(int statementCacheSize) throws IllegalArgumentException{
+		if(statementCacheSize<1)
+			throw new IllegalArgumentException("Statement cache size must be at least 1.");
+		this.statementCacheSize = statementCacheSize;
+	}
+
+	/**
+	 * @return The number of quizes, with their questions and answers, removed per transaction when deleting a user.
+	 *         Smaller values let other writers in more often during a large deletion.
+	 */
+	public int getDeleteChunkSize() {
+		return deleteChunkSize;
+	}
+
+	/**
+	 * @param deleteChunkSize The number of quizes removed per transaction when deleting a user. Must be at least 1.
+	 * @throws IllegalArgumentException If deleteChunkSize is less than 1.
+	 */
+	public void setDeleteChunkSize(int deleteChunkSize) throws IllegalArgumentException{
+		if(deleteChunkSize<1)
+			throw new IllegalArgumentException("Delete chunk size must be at least 1.");
+		this.deleteChunkSize = deleteChunkSize;
+	}
+
+	/**
+	 * @return The number of decoded quiz designs cached by the driver. The same number of per-user design lists is also cached.
+	 */
+	public int getQuizDesignCacheSize() {
+		return quizDesignCacheSize;
+	}
+
+	/**
+	 * @param quizDesignCacheSize The number of decoded quiz designs cached by the driver. 0 disables the cache.
+	 * @throws IllegalArgumentException If quizDesignCacheSize is negative.
+	 */
+	public void setQuizDesignCacheSize(int quizDesignCacheSize) throws IllegalArgumentException{
+		if(quizDesignCacheSize<0)
+			throw new IllegalArgumentException("Quiz design cache size cannot be negative.");
+		this.quizDesignCacheSize = quizDesignCacheSize;
+	}
+
+	/**
+	 * @return The number of quizes pre-generated in the background for each quiz design that has been used to generate a quiz,
+	 *         so that later quizes can be handed out without waiting on the subject question generators.
+	 *         Pre-generated quizes are not saved until they are handed out. Defaults to 0, which disables pre-generation.
+	 */
+	public int getQuizPoolSize() {
+		return quizPoolSize;
+	}
+
+	/**
+	 * @param quizPoolSize The number of quizes pre-generated for each quiz design. 0 disables pre-generation.
+	 * @throws IllegalArgumentException If quizPoolSize is negative.
+	 */
+	public void setQuizPoolSize(int quizPoolSize) throws IllegalArgumentException{
+		if(quizPoolSize<0)
+			throw new IllegalArgumentException("Quiz pool size cannot be negative.");
+		this.quizPoolSize = quizPoolSize;
+	}
+
+	/**
+	 * @return The maximum number of quiz designs for which quizes are pre-generated. When a quiz is generated for another design,
+	 *         the quizes pre-generated for the least recently used design are discarded. Only used when quizPoolSize is above 0.
+	 */
+	public int getQuizPoolDesigns() {
+		return quizPoolDesigns;
+	}
+
+	/**
+	 * @param quizPoolDesigns The maximum number of quiz designs for which quizes are pre-generated. Must be at least 1.
+	 * @throws IllegalArgumentException If quizPoolDesigns is less than 1.
+	 */
+	public void setQuizPoolDesigns(int quizPoolDesigns) throws IllegalArgumentException{
+		if(quizPoolDesigns<1)
+			throw new IllegalArgumentException("Quiz pool designs must be at least 1.");
+		this.quizPoolDesigns = quizPoolDesigns;
+	}
+
+	/**
+	 * @return true if saveAnswer should score the answer, queue it and return immediately, leaving a background thread
+	 *         to save queued answers in batches. Queued answers are saved before answers are read or quizes deleted, and when the driver is closed,
+	 *         but may be lost if the process exits abruptly. Defaults to false.
+	 */
+	public boolean isAsyncAnswers() {
+		return asyncAnswers;
+	}
+
+	/**
+	 * @param asyncAnswers true if answers should be queued and saved in batches by a background thread.
+	 */
+	public void setAsyncAnswers(boolean asyncAnswers) {
+		this.asyncAnswers = asyncAnswers;
+	}
+
+	/**
+	 * @return The maximum number of queued answers committed per transaction. Only used when asyncAnswers is true.
+	 */
+	public int getAnswerBatchSize() {
+		return answerBatchSize;
+	}
+
+	/**
+	 * @param answerBatchSize The maximum number of queued answers committed per transaction. Must be at least 1.
+	 * @throws IllegalArgumentException If answerBatchSize is less than 1.
+	 */
+	public void setAnswerBatchSize(int answerBatchSize) throws IllegalArgumentException{
+		if(answerBatchSize<1)
+			throw new IllegalArgumentException("Answer batch size must be at least 1.");
+		this.answerBatchSize = answerBatchSize;
+	}
+
+	/**
+	 * @return The maximum time, in milliseconds, a queued answer waits for its batch to fill before the batch is saved anyway.
+	 *         Only used when asyncAnswers is true.
+	 */
+	public int getAnswerMaxLatencyMillis() {
+		return answerMaxLatencyMillis;
+	}
+
+	/**
+	 * @param answerMaxLatencyMillis The maximum time, in milliseconds, a queued answer waits before being saved.
+	 * @throws IllegalArgumentException If answerMaxLatencyMillis is negative.
+	 */
+	public void setAnswerMaxLatencyMillis(int answerMaxLatencyMillis) throws IllegalArgumentException{
+		if(answerMaxLatencyMillis<0)
+			throw new IllegalArgumentException("Answer max latency cannot be negative.");
+		this.answerMaxLatencyMillis = answerMaxLatencyMillis;
+	}
+
+	/**
+	 * @return How often, in seconds, a summary of the driver's metrics is written to standard output. Defaults to 0, which disables the log.
+	 */
+	public int getMetricsLogIntervalSeconds() {
+		return metricsLogIntervalSeconds;
+	}
+
+	/**
+	 * @param metricsLogIntervalSeconds How often, in seconds, the driver's metrics are logged. 0 disables the log.
+	 * @throws IllegalArgumentException If metricsLogIntervalSeconds is negative.
+	 */
+	public void setMetricsLogIntervalSeconds(int metricsLogIntervalSeconds) throws IllegalArgumentException{
+		if(metricsLogIntervalSeconds<0)
+			throw new IllegalArgumentException("Metrics log interval cannot be negative.");
+		this.metricsLogIntervalSeconds = metricsLogIntervalSeconds;
+	}
+
+	/**
+	 * @return How long, in milliseconds, a statement must run before it is logged as slow, along with its query plan.
+	 *         Defaults to 0, which disables the slow query log.
+	 */
+	public int getSlowQueryThresholdMillis() {
+		return slowQueryThresholdMillis;
+	}
+
+	/**
+	 * @param slowQueryThresholdMillis How long, in milliseconds, a statement must run before it is logged as slow. 0 disables the log.
+	 * @throws IllegalArgumentException If slowQueryThresholdMillis is negative.
+	 */
+	public void setSlowQueryThresholdMillis(int slowQueryThresholdMillis) throws IllegalArgumentException{
+		if(slowQueryThresholdMillis<0)
+			throw new IllegalArgumentException("Slow query threshold cannot be negative.");
+		this.slowQueryThresholdMillis = slowQueryThresholdMillis;
+	}
+
+	/**
+	 * @return true if bound parameter values are included when slow statements are logged.
+	 *         Defaults to false, in which case each value is logged as ?, since parameters may hold user names and answers.
+	 */
+	public boolean isSlowQueryLogParameters() {
+		return slowQueryLogParameters;
+	}
+
+	/**
+	 * @param slowQueryLogParameters true if bound parameter values should be included when slow statements are logged.
+	 */
+	public void setSlowQueryLogParameters(boolean slowQueryLogParameters) {
+		this.slowQueryLogParameters = slowQueryLogParameters;
+	}
+
+	/**
+	 * @return The number of platform threads used to run subject question generators concurrently when a quiz is generated.
+	 *         0 means generators run one after another on the calling thread. Ignored when virtual threads are used.
+	 *         Defaults to the number of available processors.
+	 */
+	public int getGeneratorThreads() {
+		return generatorThreads;
+	}
+
+	/**
+	 * @param generatorThreads The number of platform threads used to run subject question generators. 0 disables concurrent generation.
+	 * @throws IllegalArgumentException If generatorThreads is negative.
+	 */
+	public void setGeneratorThreads(int generatorThreads) throws IllegalArgumentException{
+		if(generatorThreads<0)
+			throw new IllegalArgumentException("Generator thread count cannot be negative.");
+		this.generatorThreads = generatorThreads;
+	}
+
+	/**
+	 * @return true if subject question generators should run on virtual threads when the JVM supports them (Java 21 and later),
+	 *         and generatorThreads is not 0. Defaults to true.
+	 */
+	public boolean isVirtualGeneratorThreads() {
+		return virtualGeneratorThreads;
+	}
+
+	/**
+	 * @param virtualGeneratorThreads true if subject question generators should run on virtual threads when the JVM supports them.
+	 */
+	public void setVirtualGeneratorThreads(boolean virtualGeneratorThreads) {
+		this.virtualGeneratorThreads = virtualGeneratorThreads;
+	}
+
+	private static boolean getBooleanProperty(Function<String,String> properties, String name, boolean defaultValue) throws IllegalArgumentException{
+		String value = properties.apply(name);
+		if(value==null)
+			return defaultValue;
+		value = value.trim();
+		if(value.equalsIgnoreCase("true"))
+			return true;
+		if(value.equalsIgnoreCase("false"))
+			return false;
+		throw new IllegalArgumentException("Invalid boolean value for "+name+": "+value);
+	}
+
+	private static int getIntProperty(Function<String,String> properties, String name, int defaultValue) throws IllegalArgumentException{
+		String value = properties.apply(name);
+		if(value==null)
+			return defaultValue;
+		try{
+			return Integer.parseInt(value.trim());
+		}
+		catch(NumberFormatException t){
+			throw new IllegalArgumentException("Invalid integer value for "+name+": "+value, t);
+		}
+	}
+}
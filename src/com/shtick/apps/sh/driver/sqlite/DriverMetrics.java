@@ -0,0 +1,219 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Latency, error and row counts for each SQLiteDriver operation, along with the time spent waiting for database connections.
+ *
+ * A driver's metrics are registered as an OSGi service by the bundle activator, so that they can be read without a profiler.
+ * Since this package is not exported, the service is registered as a Supplier of a Map, built by get() from java.lang and java.util types only,
+ * and is identified by the SERVICE_PROPERTY service property.
+ *
+ * @author sean.cox
+ *
+ */
+public class DriverMetrics implements Supplier<Map<String,Object>> {
+	/**
+	 * The service property, set to true, which identifies the metrics service among other Supplier services.
+	 */
+	public static final String SERVICE_PROPERTY = "sh.driver.sqlite.metrics";
+
+	/**
+	 * A measured operation which returns a value.
+	 *
+	 * @param <T>
+	 */
+	@FunctionalInterface
+	interface Operation<T> {
+		/**
+		 * @return The result of the operation.
+		 * @throws IOException
+		 */
+		T run() throws IOException;
+	}
+
+	/**
+	 * A measured operation which does not return a value.
+	 */
+	@FunctionalInterface
+	interface VoidOperation {
+		/**
+		 * @throws IOException
+		 */
+		void run() throws IOException;
+	}
+
+	private final ConcurrentHashMap<String,OperationMetrics> operations = new ConcurrentHashMap<>();
+	private final TimingStatistics readerWait = new TimingStatistics();
+	private final TimingStatistics writerWait = new TimingStatistics();
+	private final ThreadLocal<OperationMetrics> currentOperation = new ThreadLocal<>();
+	private final LongAdder slowQueries = new LongAdder();
+
+	/**
+	 * Runs an operation, recording its latency and whether it failed.
+	 * Rows read and written while it runs on this thread are attributed to it, rather than to any enclosing operation.
+	 *
+	 * @param name
+	 * @param operation
+	 * @return The result of the operation.
+	 * @throws IOException
+	 */
+	<T> T measure(String name, Operation<T> operation) throws IOException{
+		OperationMetrics metrics = operations.computeIfAbsent(name, OperationMetrics::new);
+		OperationMetrics enclosing = currentOperation.get();
+		currentOperation.set(metrics);
+		boolean failed = true;
+		long start = System.nanoTime();
+		try{
+			T retval = operation.run();
+			failed = false;
+			return retval;
+		}
+		finally{
+			metrics.record(System.nanoTime()-start, failed);
+			currentOperation.set(enclosing);
+		}
+	}
+
+	/**
+	 * Runs an operation, recording its latency and whether it failed.
+	 *
+	 * @param name
+	 * @param operation
+	 * @throws IOException
+	 */
+	void measure(String name, VoidOperation operation) throws IOException{
+		measure(name, ()->{
+			operation.run();
+			return null;
+		});
+	}
+
+	void recordRowsRead(long rows){
+		OperationMetrics metrics = currentOperation.get();
+		if(metrics!=null)
+			metrics.addRowsRead(rows);
+	}
+
+	void recordRowsWritten(long rows){
+		OperationMetrics metrics = currentOperation.get();
+		if(metrics!=null)
+			metrics.addRowsWritten(rows);
+	}
+
+	/**
+	 * @return The name of the operation being measured on this thread, or null if there is none.
+	 */
+	String getCurrentOperationName(){
+		OperationMetrics metrics = currentOperation.get();
+		return (metrics==null)?null:metrics.getName();
+	}
+
+	void recordSlowQuery(){
+		slowQueries.increment();
+	}
+
+	void recordReaderWait(long nanos){
+		readerWait.record(nanos);
+	}
+
+	void recordWriterWait(long nanos){
+		writerWait.record(nanos);
+	}
+
+	/**
+	 * @return The metrics of each operation which has been called, by operation name, sorted by name.
+	 */
+	public Map<String,OperationMetrics> getOperations(){
+		return Collections.unmodifiableMap(new TreeMap<>(operations));
+	}
+
+	/**
+	 * @param name The name of the operation, which is the name of the driver method.
+	 * @return The metrics for the operation, or null if it has not been called.
+	 */
+	public OperationMetrics getOperation(String name){
+		return operations.get(name);
+	}
+
+	/**
+	 * @return The time spent waiting for a reader connection to become free.
+	 */
+	public TimingStatistics getReaderWait(){
+		return readerWait;
+	}
+
+	/**
+	 * @return The time spent waiting for the writer connection to become free.
+	 */
+	public TimingStatistics getWriterWait(){
+		return writerWait;
+	}
+
+	/**
+	 * @return The number of statements which have been logged as slow.
+	 */
+	public long getSlowQueryCount(){
+		return slowQueries.sum();
+	}
+
+	/**
+	 * @return A snapshot of the metrics, which holds:
+	 *         readerWait and writerWait, each a Map of count, totalNanos, maxNanos and meanNanos;
+	 *         slowQueries;
+	 *         and operations, a Map from operation name, sorted by name, to a Map of count, errors, totalNanos, maxNanos, meanNanos,
+	 *         p50Micros, p99Micros, rowsRead, rowsWritten and histogram. The histogram is a long[] of latency counts,
+	 *         where element 0 counts latencies under 1us and element i counts latencies under 2^i us but not under 2^(i-1)us.
+	 */
+	@Override
+	public Map<String,Object> get(){
+		LinkedHashMap<String,Object> retval = new LinkedHashMap<>();
+		retval.put("readerWait", toMap(readerWait));
+		retval.put("writerWait", toMap(writerWait));
+		retval.put("slowQueries", getSlowQueryCount());
+		LinkedHashMap<String,Object> operationMaps = new LinkedHashMap<>();
+		for(OperationMetrics metrics:getOperations().values()){
+			LinkedHashMap<String,Object> operationMap = new LinkedHashMap<>();
+			operationMap.put("count", metrics.getCount());
+			operationMap.put("errors", metrics.getErrorCount());
+			operationMap.put("totalNanos", metrics.getTotalNanos());
+			operationMap.put("maxNanos", metrics.getMaxNanos());
+			operationMap.put("meanNanos", metrics.getMeanNanos());
+			operationMap.put("p50Micros", metrics.getPercentileMicros(0.5));
+			operationMap.put("p99Micros", metrics.getPercentileMicros(0.99));
+			operationMap.put("rowsRead", metrics.getRowsRead());
+			operationMap.put("rowsWritten", metrics.getRowsWritten());
+			operationMap.put("histogram", metrics.getHistogram());
+			operationMaps.put(metrics.getName(), Collections.unmodifiableMap(operationMap));
+		}
+		retval.put("operations", Collections.unmodifiableMap(operationMaps));
+		return Collections.unmodifiableMap(retval);
+	}
+
+	private static Map<String,Object> toMap(TimingStatistics statistics){
+		LinkedHashMap<String,Object> retval = new LinkedHashMap<>();
+		retval.put("count", statistics.getCount());
+		retval.put("totalNanos", statistics.getTotalNanos());
+		retval.put("maxNanos", statistics.getMaxNanos());
+		retval.put("meanNanos", statistics.getMeanNanos());
+		return Collections.unmodifiableMap(retval);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder retval = new StringBuilder("readerWait[").append(readerWait).append("], writerWait[").append(writerWait).append("], slowQueries=").append(getSlowQueryCount());
+		for(OperationMetrics metrics:getOperations().values())
+			retval.append(", ").append(metrics);
+		return retval.toString();
+	}
+}
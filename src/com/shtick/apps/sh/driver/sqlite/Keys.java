@@ -0,0 +1,103 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * Conversion between the string form of IDs and their stored form.
+ *
+ * IDs are UUIDs, which are stored as 16-byte BLOBs in their big-endian byte order rather than as 36-character text.
+ * IDs created by the driver are time-ordered, with the creation time in milliseconds in the top 48 bits as in a version 7 UUID,
+ * so that new rows are added at the end of each index rather than scattered through it.
+ *
+ * Any ID which is not a UUID in its canonical form (lower case, with every group at full length) is stored as TEXT,
+ * so that the storage class tells the two forms apart: a BLOB is always a UUID, and a TEXT value never matches one.
+ * Other spellings of a UUID are not converted, since a BLOB is read back in the canonical form, which would be a different ID.
+ * Reading also accepts UUIDs stored as text, as they are by databases from before version 7 of the schema.
+ *
+ * @author sean.cox
+ *
+ */
+class Keys {
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	/**
+	 * Binds an ID to a parameter.
+	 *
+	 * @param statement
+	 * @param index
+	 * @param id A UserID, QuizDesignID, QuizID, QuestionID, AnswerID, or the string form of one.
+	 * @throws SQLException
+	 */
+	public static void bind(PreparedStatement statement, int index, Object id) throws SQLException{
+		String string = id.toString();
+		byte[] key = toBytes(string);
+		if(key!=null)
+			statement.setBytes(index, key);
+		else
+			statement.setString(index, string);
+	}
+
+	/**
+	 * Reads an ID from a column.
+	 *
+	 * @param resultSet
+	 * @param index
+	 * @return The string form of the ID.
+	 * @throws SQLException
+	 */
+	public static String read(ResultSet resultSet, int index) throws SQLException{
+		Object value = resultSet.getObject(index);
+		if(value instanceof byte[])
+			return toString((byte[])value);
+		return (value==null)?null:value.toString();
+	}
+
+	/**
+	 * @param id
+	 * @return The 16-byte BLOB form of the ID, or null if the ID is not a UUID in its canonical form and so is stored as TEXT.
+	 */
+	public static byte[] toBytes(String id){
+		UUID uuid;
+		try{
+			uuid = UUID.fromString(id);
+		}
+		catch(IllegalArgumentException t){
+			return null;
+		}
+		// UUID.fromString() also accepts upper case and shortened groups, which would not be read back as the same ID.
+		if(!uuid.toString().equals(id))
+			return null;
+		return ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).array();
+	}
+
+	/**
+	 * @param key The BLOB form of an ID.
+	 * @return The string form of the ID, or null if key is null.
+	 * @throws IllegalArgumentException If the key is not 16 bytes long.
+	 */
+	public static String toString(byte[] key) throws IllegalArgumentException{
+		if(key==null)
+			return null;
+		if(key.length!=16)
+			throw new IllegalArgumentException("A stored ID must be 16 bytes long, not "+key.length+".");
+		ByteBuffer buffer = ByteBuffer.wrap(key);
+		return new UUID(buffer.getLong(), buffer.getLong()).toString();
+	}
+
+	/**
+	 * @return A new version 7 UUID, made of the current time in milliseconds followed by 74 random bits.
+	 */
+	public static UUID createUUID(){
+		long mostSignificantBits = (System.currentTimeMillis()<<16)|0x7000L|(RANDOM.nextInt()&0x0FFFL);
+		long leastSignificantBits = (RANDOM.nextLong()&0x3FFFFFFFFFFFFFFFL)|0x8000000000000000L;
+		return new UUID(mostSignificantBits, leastSignificantBits);
+	}
+}
@@ -0,0 +1,225 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+
+/**
+ * Background upkeep of a database: moving old quizes to an archive database, and returning free pages to the file system.
+ *
+ * Each step is small and runs in its own transaction, so that the writer is never held for long.
+ *
+ * An archive database has the same schema as the database it archives, and holds the quizes, questions and answers
+ * moved out of it. Users, quiz designs and dimension statistics stay in the live database, and the statistics
+ * continue to include archived answers. Deleting a user also deletes the user's quizes from the archive. The archive is attached to the writer connection only while a chunk is moved.
+ * Since the live database is in WAL mode, a chunk is not moved atomically across both files. Rows are therefore copied
+ * with INSERT OR IGNORE, so that a chunk which was copied but not deleted is simply moved again.
+ *
+ * @author sean.cox
+ *
+ */
+class Maintenance {
+	private static final String ARCHIVE_SUFFIX = ".archive";
+
+	/**
+	 * @param databaseURL The URL of the live catalog database, or of the single database without sharding.
+	 * @return The URL of its archive. Archives of shards are named after it in the same way that shards are named after the live database.
+	 */
+	public static String getArchiveURL(String databaseURL){
+		return Shards.insertSuffix(databaseURL, ARCHIVE_SUFFIX);
+	}
+
+	/**
+	 * Creates the archive database if necessary, and brings it up to the current schema version.
+	 *
+	 * @param archiveURL
+	 * @throws SQLException
+	 */
+	public static void prepareArchive(String archiveURL) throws SQLException{
+		try(Connection connection = DriverManager.getConnection(archiveURL)){
+			Schema.migrate(connection);
+		}
+	}
+
+	/**
+	 * Moves quizes created before the cutoff, along with their questions and answers, to the archive.
+	 *
+	 * @param connection A writer connection, not in a transaction.
+	 * @param archiveURL The URL of the archive database, which must have been prepared.
+	 * @param cutoffMillis Quizes created before this time, in milliseconds since the epoch, are moved.
+	 * @param chunkSize The maximum number of quizes to move.
+	 * @return The number of quizes moved. If this is less than chunkSize, there are no more quizes to move.
+	 * @throws SQLException
+	 */
+	public static int archiveQuizes(PooledConnection connection, String archiveURL, long cutoffMillis, int chunkSize) throws SQLException{
+		ArrayList<String> quizIDs = new ArrayList<>(chunkSize);
+		PreparedStatement select = connection.prepareStatement("SELECT id FROM quizes WHERE time_added < ? LIMIT ?");
+		select.setLong(1, cutoffMillis);
+		select.setInt(2, chunkSize);
+		try(ResultSet resultSet = select.executeQuery()){
+			while(resultSet.next())
+				quizIDs.add(Keys.read(resultSet, 1));
+		}
+		if(quizIDs.isEmpty())
+			return 0;
+
+		Connection rawConnection = connection.getConnection();
+		// ATTACH is not allowed within a transaction.
+		try(PreparedStatement attach = rawConnection.prepareStatement("ATTACH DATABASE ? AS archive")){
+			attach.setString(1, Snapshots.getDatabaseFile(archiveURL).getAbsolutePath());
+			attach.execute();
+		}
+		try{
+			// The archive statements are not cached, since they cannot be run once the archive is detached.
+			String[] sqls = {
+					"INSERT OR IGNORE INTO archive.quizes SELECT * FROM main.quizes WHERE id = ?",
+					"INSERT OR IGNORE INTO archive.questions SELECT * FROM main.questions WHERE quiz_id = ?",
+					"INSERT OR IGNORE INTO archive.answers SELECT * FROM main.answers WHERE question_id IN (SELECT id FROM main.questions WHERE quiz_id = ?)"
+			};
+			connection.beginTransaction();
+			for(String sql:sqls){
+				try(PreparedStatement statement = rawConnection.prepareStatement(sql)){
+					for(String quizID:quizIDs){
+						Keys.bind(statement, 1, quizID);
+						statement.addBatch();
+					}
+					statement.executeBatch();
+				}
+			}
+			SQLiteDriver.deleteQuizRows(connection, quizIDs);
+			connection.commit();
+		}
+		finally{
+			if(!rawConnection.getAutoCommit()){
+				rawConnection.rollback();
+				rawConnection.setAutoCommit(true);
+			}
+			try(Statement statement = rawConnection.createStatement()){
+				statement.execute("DETACH DATABASE archive");
+			}
+		}
+		return quizIDs.size();
+	}
+
+	/**
+	 * Deletes quizes belonging to a user from the archive, along with their questions and answers.
+	 *
+	 * @param connection A writer connection, not in a transaction.
+	 * @param archiveURL The URL of the archive database, which must have been prepared.
+	 * @param userID
+	 * @param chunkSize The maximum number of quizes to delete.
+	 * @return The number of quizes deleted. If this is less than chunkSize, the user has no more archived quizes.
+	 * @throws SQLException
+	 */
+	public static int deleteArchivedUserQuizes(PooledConnection connection, String archiveURL, String userID, int chunkSize) throws SQLException{
+		Connection rawConnection = connection.getConnection();
+		try(PreparedStatement attach = rawConnection.prepareStatement("ATTACH DATABASE ? AS archive")){
+			attach.setString(1, Snapshots.getDatabaseFile(archiveURL).getAbsolutePath());
+			attach.execute();
+		}
+		try{
+			ArrayList<String> quizIDs = new ArrayList<>(chunkSize);
+			try(PreparedStatement select = rawConnection.prepareStatement("SELECT id FROM archive.quizes WHERE user_id = ? LIMIT ?")){
+				Keys.bind(select, 1, userID);
+				select.setInt(2, chunkSize);
+				try(ResultSet resultSet = select.executeQuery()){
+					while(resultSet.next())
+						quizIDs.add(Keys.read(resultSet, 1));
+				}
+			}
+			if(quizIDs.isEmpty())
+				return 0;
+			String[] sqls = {
+					"DELETE FROM archive.answers WHERE question_id IN (SELECT id FROM archive.questions WHERE quiz_id = ?)",
+					"DELETE FROM archive.questions WHERE quiz_id = ?",
+					"DELETE FROM archive.quizes WHERE id = ?"
+			};
+			connection.beginTransaction();
+			for(String sql:sqls){
+				try(PreparedStatement statement = rawConnection.prepareStatement(sql)){
+					for(String quizID:quizIDs){
+						Keys.bind(statement, 1, quizID);
+						statement.addBatch();
+					}
+					statement.executeBatch();
+				}
+			}
+			connection.commit();
+			return quizIDs.size();
+		}
+		finally{
+			if(!rawConnection.getAutoCommit()){
+				rawConnection.rollback();
+				rawConnection.setAutoCommit(true);
+			}
+			try(Statement statement = rawConnection.createStatement()){
+				statement.execute("DETACH DATABASE archive");
+			}
+		}
+	}
+
+	/**
+	 * Converts the database to incremental auto-vacuum if it is not already.
+	 * Auto-vacuum can only be changed by rebuilding the database, so the first conversion of a large database takes a while.
+	 *
+	 * @param connection A writer connection, not in a transaction, while no other connection is using the database.
+	 * @throws SQLException
+	 */
+	public static void enableIncrementalVacuum(Connection connection) throws SQLException{
+		try(Statement statement = connection.createStatement()){
+			try(ResultSet resultSet = statement.executeQuery("PRAGMA auto_vacuum")){
+				// 2 is INCREMENTAL.
+				if(resultSet.next()&&(resultSet.getInt(1)==2))
+					return;
+			}
+			System.out.println("Converting database to incremental auto-vacuum.");
+			statement.execute("PRAGMA auto_vacuum=INCREMENTAL");
+			statement.execute("VACUUM");
+		}
+	}
+
+	/**
+	 * Returns some of the database's free pages to the file system.
+	 *
+	 * @param connection A writer connection.
+	 * @param pages The maximum number of pages to free.
+	 * @return true if free pages remain.
+	 * @throws SQLException
+	 */
+	public static boolean vacuumIncrementally(PooledConnection connection, int pages) throws SQLException{
+		try(Statement statement = connection.getConnection().createStatement()){
+			int freePages;
+			try(ResultSet resultSet = statement.executeQuery("PRAGMA freelist_count")){
+				resultSet.next();
+				freePages = resultSet.getInt(1);
+			}
+			if(freePages==0)
+				return false;
+			// Each step of the statement frees one page. Unlike execute(), executeUpdate() steps it to completion.
+			statement.executeUpdate("PRAGMA incremental_vacuum("+pages+")");
+			return freePages>pages;
+		}
+	}
+
+	/**
+	 * Copies the write-ahead log into the database, so that pages freed by vacuuming are cut from the end of the database file.
+	 * Readers are not waited for, so the copy is partial if a reader is still using an older version of the database.
+	 *
+	 * @param connection A writer connection.
+	 * @throws SQLException
+	 */
+	public static void checkpoint(PooledConnection connection) throws SQLException{
+		try(Statement statement = connection.getConnection().createStatement()){
+			try(ResultSet resultSet = statement.executeQuery("PRAGMA wal_checkpoint(PASSIVE)")){
+				resultSet.next();
+			}
+		}
+	}
+}
@@ -0,0 +1,712 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.Ref;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * Wraps a prepared statement so that the rows it reads and writes are reported to DriverMetrics,
+ * and statements which run for too long are reported to the SlowQueryLog.
+ *
+ * The time attributed to a query is the time spent in executeQuery() and in ResultSet.next(),
+ * which excludes any time the caller spends processing rows between calls.
+ *
+ * Every other method is passed straight to the wrapped statement.
+ *
+ * @author sean.cox
+ *
+ */
+class MonitoredStatement implements PreparedStatement {
+	private static final Object[] NO_PARAMETERS = new Object[0];
+	private final PreparedStatement statement;
+	private final Connection connection;
+	private final String sql;
+	private final DriverMetrics metrics;
+	private final SlowQueryLog slowQueryLog;
+	private Object[] parameters = NO_PARAMETERS;
+
+	private MonitoredStatement(PreparedStatement statement, Connection connection, String sql, DriverMetrics metrics, SlowQueryLog slowQueryLog) {
+		this.statement = statement;
+		this.connection = connection;
+		this.sql = sql;
+		this.metrics = metrics;
+		this.slowQueryLog = slowQueryLog;
+	}
+
+	/**
+	 * @param statement
+	 * @param connection The connection the statement was prepared on.
+	 * @param sql The SQL the statement was prepared from.
+	 * @param metrics The metrics to report rows read and written to, or null.
+	 * @param slowQueryLog The log to report slow statements to, or null.
+	 * @return A statement which behaves as the given statement, while reporting to the metrics and slow query log.
+	 */
+	public static PreparedStatement wrap(PreparedStatement statement, Connection connection, String sql, DriverMetrics metrics, SlowQueryLog slowQueryLog){
+		return new MonitoredStatement(statement, connection, sql, metrics, slowQueryLog);
+	}
+
+	/**
+	 * Reports a row read by a query on this statement.
+	 */
+	void recordRowRead(){
+		if(metrics!=null)
+			metrics.recordRowsRead(1);
+	}
+
+	/**
+	 * Reports a query on this statement once its results have been closed.
+	 *
+	 * @param queryParameters The parameters the query was run with.
+	 * @param elapsedNanos The time spent running the query and reading its rows.
+	 * @param rows The number of rows read.
+	 */
+	void recordQuery(Object[] queryParameters, long elapsedNanos, long rows){
+		if(slowQueryLog!=null)
+			slowQueryLog.record(connection, sql, queryParameters, elapsedNanos, rows);
+	}
+
+	private void recordParameter(int index, Object value){
+		if(index<1)
+			return;
+		if(index>parameters.length)
+			parameters = Arrays.copyOf(parameters, index);
+		parameters[index-1] = value;
+	}
+
+	private void recordRowsWritten(long rows, long elapsedNanos){
+		if(metrics!=null)
+			metrics.recordRowsWritten(rows);
+		if(slowQueryLog!=null)
+			slowQueryLog.record(connection, sql, parameters.clone(), elapsedNanos, rows);
+	}
+
+	@Override
+	public ResultSet executeQuery() throws SQLException{
+		long start = System.nanoTime();
+		ResultSet resultSet = statement.executeQuery();
+		return new MonitoredResultSet(resultSet, this, System.nanoTime()-start, (slowQueryLog==null)?NO_PARAMETERS:parameters.clone());
+	}
+
+	@Override
+	public int executeUpdate() throws SQLException{
+		long start = System.nanoTime();
+		int retval = statement.executeUpdate();
+		recordRowsWritten(retval, System.nanoTime()-start);
+		return retval;
+	}
+
+	@Override
+	public void setNull(int parameterIndex, int sqlType) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, null);
+		statement.setNull(parameterIndex, sqlType);
+	}
+
+	@Override
+	public void setBoolean(int parameterIndex, boolean x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setBoolean(parameterIndex, x);
+	}
+
+	@Override
+	public void setByte(int parameterIndex, byte x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setByte(parameterIndex, x);
+	}
+
+	@Override
+	public void setShort(int parameterIndex, short x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setShort(parameterIndex, x);
+	}
+
+	@Override
+	public void setInt(int parameterIndex, int x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setInt(parameterIndex, x);
+	}
+
+	@Override
+	public void setLong(int parameterIndex, long x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setLong(parameterIndex, x);
+	}
+
+	@Override
+	public void setFloat(int parameterIndex, float x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setFloat(parameterIndex, x);
+	}
+
+	@Override
+	public void setDouble(int parameterIndex, double x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setDouble(parameterIndex, x);
+	}
+
+	@Override
+	public void setBigDecimal(int parameterIndex, BigDecimal x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setBigDecimal(parameterIndex, x);
+	}
+
+	@Override
+	public void setString(int parameterIndex, String x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setString(parameterIndex, x);
+	}
+
+	@Override
+	public void setBytes(int parameterIndex, byte[] x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setBytes(parameterIndex, x);
+	}
+
+	@Override
+	public void setDate(int parameterIndex, Date x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setDate(parameterIndex, x);
+	}
+
+	@Override
+	public void setTime(int parameterIndex, Time x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setTime(parameterIndex, x);
+	}
+
+	@Override
+	public void setTimestamp(int parameterIndex, Timestamp x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setTimestamp(parameterIndex, x);
+	}
+
+	@Override
+	public void setAsciiStream(int parameterIndex, InputStream x, int length) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setAsciiStream(parameterIndex, x, length);
+	}
+
+	@Override
+	@Deprecated
+	public void setUnicodeStream(int parameterIndex, InputStream x, int length) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setUnicodeStream(parameterIndex, x, length);
+	}
+
+	@Override
+	public void setBinaryStream(int parameterIndex, InputStream x, int length) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setBinaryStream(parameterIndex, x, length);
+	}
+
+	@Override
+	public void clearParameters() throws SQLException{
+		parameters = NO_PARAMETERS;
+		statement.clearParameters();
+	}
+
+	@Override
+	public void setObject(int parameterIndex, Object x, int targetSqlType) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setObject(parameterIndex, x, targetSqlType);
+	}
+
+	@Override
+	public void setObject(int parameterIndex, Object x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setObject(parameterIndex, x);
+	}
+
+	@Override
+	public boolean execute() throws SQLException{
+		return statement.execute();
+	}
+
+	@Override
+	public void addBatch() throws SQLException{
+		statement.addBatch();
+	}
+
+	@Override
+	public void setCharacterStream(int parameterIndex, Reader reader, int length) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, reader);
+		statement.setCharacterStream(parameterIndex, reader, length);
+	}
+
+	@Override
+	public void setRef(int parameterIndex, Ref x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setRef(parameterIndex, x);
+	}
+
+	@Override
+	public void setBlob(int parameterIndex, Blob x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setBlob(parameterIndex, x);
+	}
+
+	@Override
+	public void setClob(int parameterIndex, Clob x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setClob(parameterIndex, x);
+	}
+
+	@Override
+	public void setArray(int parameterIndex, Array x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setArray(parameterIndex, x);
+	}
+
+	@Override
+	public ResultSetMetaData getMetaData() throws SQLException{
+		return statement.getMetaData();
+	}
+
+	@Override
+	public void setDate(int parameterIndex, Date x, Calendar cal) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setDate(parameterIndex, x, cal);
+	}
+
+	@Override
+	public void setTime(int parameterIndex, Time x, Calendar cal) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setTime(parameterIndex, x, cal);
+	}
+
+	@Override
+	public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setTimestamp(parameterIndex, x, cal);
+	}
+
+	@Override
+	public void setNull(int parameterIndex, int sqlType, String typeName) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, null);
+		statement.setNull(parameterIndex, sqlType, typeName);
+	}
+
+	@Override
+	public void setURL(int parameterIndex, URL x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setURL(parameterIndex, x);
+	}
+
+	@Override
+	public ParameterMetaData getParameterMetaData() throws SQLException{
+		return statement.getParameterMetaData();
+	}
+
+	@Override
+	public void setRowId(int parameterIndex, RowId x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setRowId(parameterIndex, x);
+	}
+
+	@Override
+	public void setNString(int parameterIndex, String value) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, value);
+		statement.setNString(parameterIndex, value);
+	}
+
+	@Override
+	public void setNCharacterStream(int parameterIndex, Reader value, long length) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, value);
+		statement.setNCharacterStream(parameterIndex, value, length);
+	}
+
+	@Override
+	public void setNClob(int parameterIndex, NClob value) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, value);
+		statement.setNClob(parameterIndex, value);
+	}
+
+	@Override
+	public void setClob(int parameterIndex, Reader reader, long length) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, reader);
+		statement.setClob(parameterIndex, reader, length);
+	}
+
+	@Override
+	public void setBlob(int parameterIndex, InputStream inputStream, long length) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, inputStream);
+		statement.setBlob(parameterIndex, inputStream, length);
+	}
+
+	@Override
+	public void setNClob(int parameterIndex, Reader reader, long length) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, reader);
+		statement.setNClob(parameterIndex, reader, length);
+	}
+
+	@Override
+	public void setSQLXML(int parameterIndex, SQLXML xmlObject) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, xmlObject);
+		statement.setSQLXML(parameterIndex, xmlObject);
+	}
+
+	@Override
+	public void setObject(int parameterIndex, Object x, int targetSqlType, int scaleOrLength) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+	}
+
+	@Override
+	public void setAsciiStream(int parameterIndex, InputStream x, long length) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setAsciiStream(parameterIndex, x, length);
+	}
+
+	@Override
+	public void setBinaryStream(int parameterIndex, InputStream x, long length) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setBinaryStream(parameterIndex, x, length);
+	}
+
+	@Override
+	public void setCharacterStream(int parameterIndex, Reader reader, long length) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, reader);
+		statement.setCharacterStream(parameterIndex, reader, length);
+	}
+
+	@Override
+	public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setAsciiStream(parameterIndex, x);
+	}
+
+	@Override
+	public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, x);
+		statement.setBinaryStream(parameterIndex, x);
+	}
+
+	@Override
+	public void setCharacterStream(int parameterIndex, Reader reader) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, reader);
+		statement.setCharacterStream(parameterIndex, reader);
+	}
+
+	@Override
+	public void setNCharacterStream(int parameterIndex, Reader value) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, value);
+		statement.setNCharacterStream(parameterIndex, value);
+	}
+
+	@Override
+	public void setClob(int parameterIndex, Reader reader) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, reader);
+		statement.setClob(parameterIndex, reader);
+	}
+
+	@Override
+	public void setBlob(int parameterIndex, InputStream inputStream) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, inputStream);
+		statement.setBlob(parameterIndex, inputStream);
+	}
+
+	@Override
+	public void setNClob(int parameterIndex, Reader reader) throws SQLException{
+		if(slowQueryLog!=null)
+			recordParameter(parameterIndex, reader);
+		statement.setNClob(parameterIndex, reader);
+	}
+
+	@Override
+	public ResultSet executeQuery(String sql) throws SQLException{
+		return statement.executeQuery(sql);
+	}
+
+	@Override
+	public int executeUpdate(String sql) throws SQLException{
+		return statement.executeUpdate(sql);
+	}
+
+	@Override
+	public void close() throws SQLException{
+		statement.close();
+	}
+
+	@Override
+	public int getMaxFieldSize() throws SQLException{
+		return statement.getMaxFieldSize();
+	}
+
+	@Override
+	public void setMaxFieldSize(int max) throws SQLException{
+		statement.setMaxFieldSize(max);
+	}
+
+	@Override
+	public int getMaxRows() throws SQLException{
+		return statement.getMaxRows();
+	}
+
+	@Override
+	public void setMaxRows(int max) throws SQLException{
+		statement.setMaxRows(max);
+	}
+
+	@Override
+	public void setEscapeProcessing(boolean enable) throws SQLException{
+		statement.setEscapeProcessing(enable);
+	}
+
+	@Override
+	public int getQueryTimeout() throws SQLException{
+		return statement.getQueryTimeout();
+	}
+
+	@Override
+	public void setQueryTimeout(int seconds) throws SQLException{
+		statement.setQueryTimeout(seconds);
+	}
+
+	@Override
+	public void cancel() throws SQLException{
+		statement.cancel();
+	}
+
+	@Override
+	public SQLWarning getWarnings() throws SQLException{
+		return statement.getWarnings();
+	}
+
+	@Override
+	public void clearWarnings() throws SQLException{
+		statement.clearWarnings();
+	}
+
+	@Override
+	public void setCursorName(String name) throws SQLException{
+		statement.setCursorName(name);
+	}
+
+	@Override
+	public boolean execute(String sql) throws SQLException{
+		return statement.execute(sql);
+	}
+
+	@Override
+	public ResultSet getResultSet() throws SQLException{
+		return statement.getResultSet();
+	}
+
+	@Override
+	public int getUpdateCount() throws SQLException{
+		return statement.getUpdateCount();
+	}
+
+	@Override
+	public boolean getMoreResults() throws SQLException{
+		return statement.getMoreResults();
+	}
+
+	@Override
+	public void setFetchDirection(int direction) throws SQLException{
+		statement.setFetchDirection(direction);
+	}
+
+	@Override
+	public int getFetchDirection() throws SQLException{
+		return statement.getFetchDirection();
+	}
+
+	@Override
+	public void setFetchSize(int rows) throws SQLException{
+		statement.setFetchSize(rows);
+	}
+
+	@Override
+	public int getFetchSize() throws SQLException{
+		return statement.getFetchSize();
+	}
+
+	@Override
+	public int getResultSetConcurrency() throws SQLException{
+		return statement.getResultSetConcurrency();
+	}
+
+	@Override
+	public int getResultSetType() throws SQLException{
+		return statement.getResultSetType();
+	}
+
+	@Override
+	public void addBatch(String sql) throws SQLException{
+		statement.addBatch(sql);
+	}
+
+	@Override
+	public void clearBatch() throws SQLException{
+		statement.clearBatch();
+	}
+
+	@Override
+	public int[] executeBatch() throws SQLException{
+		long start = System.nanoTime();
+		int[] retval = statement.executeBatch();
+		long elapsed = System.nanoTime()-start;
+		long rows = 0;
+		for(int count:retval){
+			if(count>0)
+				rows += count;
+		}
+		recordRowsWritten(rows, elapsed);
+		return retval;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException{
+		return statement.getConnection();
+	}
+
+	@Override
+	public boolean getMoreResults(int current) throws SQLException{
+		return statement.getMoreResults(current);
+	}
+
+	@Override
+	public ResultSet getGeneratedKeys() throws SQLException{
+		return statement.getGeneratedKeys();
+	}
+
+	@Override
+	public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException{
+		return statement.executeUpdate(sql, autoGeneratedKeys);
+	}
+
+	@Override
+	public int executeUpdate(String sql, int[] columnIndexes) throws SQLException{
+		return statement.executeUpdate(sql, columnIndexes);
+	}
+
+	@Override
+	public int executeUpdate(String sql, String[] columnNames) throws SQLException{
+		return statement.executeUpdate(sql, columnNames);
+	}
+
+	@Override
+	public boolean execute(String sql, int autoGeneratedKeys) throws SQLException{
+		return statement.execute(sql, autoGeneratedKeys);
+	}
+
+	@Override
+	public boolean execute(String sql, int[] columnIndexes) throws SQLException{
+		return statement.execute(sql, columnIndexes);
+	}
+
+	@Override
+	public boolean execute(String sql, String[] columnNames) throws SQLException{
+		return statement.execute(sql, columnNames);
+	}
+
+	@Override
+	public int getResultSetHoldability() throws SQLException{
+		return statement.getResultSetHoldability();
+	}
+
+	@Override
+	public boolean isClosed() throws SQLException{
+		return statement.isClosed();
+	}
+
+	@Override
+	public void setPoolable(boolean poolable) throws SQLException{
+		statement.setPoolable(poolable);
+	}
+
+	@Override
+	public boolean isPoolable() throws SQLException{
+		return statement.isPoolable();
+	}
+
+	@Override
+	public void closeOnCompletion() throws SQLException{
+		statement.closeOnCompletion();
+	}
+
+	@Override
+	public boolean isCloseOnCompletion() throws SQLException{
+		return statement.isCloseOnCompletion();
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException{
+		return statement.unwrap(iface);
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException{
+		return statement.isWrapperFor(iface);
+	}
+}
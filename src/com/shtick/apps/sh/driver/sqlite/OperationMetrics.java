@@ -0,0 +1,163 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and a latency histogram for one driver operation. Safe for concurrent use.
+ *
+ * Latencies are counted in power-of-two buckets of microseconds: bucket 0 holds latencies under 1us,
+ * and bucket i holds latencies of at least 2^(i-1)us and under 2^i us. The last bucket also holds anything longer.
+ *
+ * @author sean.cox
+ *
+ */
+public class OperationMetrics {
+	/**
+	 * The number of latency histogram buckets.
+	 */
+	public static final int BUCKET_COUNT = 32;
+
+	private final String name;
+	private final LongAdder count = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+	private final LongAdder rowsRead = new LongAdder();
+	private final LongAdder rowsWritten = new LongAdder();
+	private final AtomicLongArray histogram = new AtomicLongArray(BUCKET_COUNT);
+
+	/**
+	 * @param name The name of the operation.
+	 */
+	public OperationMetrics(String name) {
+		super();
+		this.name = name;
+	}
+
+	void record(long nanos, boolean failed){
+		count.increment();
+		if(failed)
+			errors.increment();
+		totalNanos.add(nanos);
+		maxNanos.accumulate(nanos);
+		long micros = nanos/1000;
+		histogram.incrementAndGet(Math.min(BUCKET_COUNT-1, 64-Long.numberOfLeadingZeros(micros)));
+	}
+
+	void addRowsRead(long rows){
+		rowsRead.add(rows);
+	}
+
+	void addRowsWritten(long rows){
+		rowsWritten.add(rows);
+	}
+
+	/**
+	 * @return The name of the operation.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return The number of times the operation has completed, successfully or not.
+	 */
+	public long getCount(){
+		return count.sum();
+	}
+
+	/**
+	 * @return The number of times the operation has thrown an exception.
+	 */
+	public long getErrorCount(){
+		return errors.sum();
+	}
+
+	/**
+	 * @return The total time spent in the operation, in nanoseconds.
+	 */
+	public long getTotalNanos(){
+		return totalNanos.sum();
+	}
+
+	/**
+	 * @return The longest time taken by a single call, in nanoseconds.
+	 */
+	public long getMaxNanos(){
+		return maxNanos.get();
+	}
+
+	/**
+	 * @return The mean time taken per call, in nanoseconds, or 0 if there have been no calls.
+	 */
+	public long getMeanNanos(){
+		long count = getCount();
+		if(count==0)
+			return 0;
+		return getTotalNanos()/count;
+	}
+
+	/**
+	 * @return The number of rows returned by queries made by the operation.
+	 */
+	public long getRowsRead(){
+		return rowsRead.sum();
+	}
+
+	/**
+	 * @return The number of rows inserted, updated or deleted by the operation.
+	 */
+	public long getRowsWritten(){
+		return rowsWritten.sum();
+	}
+
+	/**
+	 * @return A copy of the latency histogram. See the class description for the bucket boundaries.
+	 */
+	public long[] getHistogram(){
+		long[] retval = new long[BUCKET_COUNT];
+		for(int i=0;i<BUCKET_COUNT;i++)
+			retval[i] = histogram.get(i);
+		return retval;
+	}
+
+	/**
+	 * @param bucket
+	 * @return The exclusive upper bound of the bucket's latencies, in microseconds.
+	 */
+	public static long getBucketUpperBoundMicros(int bucket){
+		return 1L<<bucket;
+	}
+
+	/**
+	 * @param percentile A fraction between 0 and 1.
+	 * @return An upper bound, in microseconds, on the given percentile of latencies, or 0 if there have been no calls.
+	 */
+	public long getPercentileMicros(double percentile){
+		long[] histogram = getHistogram();
+		long total = 0;
+		for(long bucketCount:histogram)
+			total += bucketCount;
+		if(total==0)
+			return 0;
+		long target = (long)Math.ceil(total*percentile);
+		long seen = 0;
+		for(int i=0;i<BUCKET_COUNT;i++){
+			seen += histogram[i];
+			if((seen>=target)&&(seen>0))
+				return getBucketUpperBoundMicros(i);
+		}
+		return getBucketUpperBoundMicros(BUCKET_COUNT-1);
+	}
+
+	@Override
+	public String toString() {
+		return name+"[count="+getCount()+", errors="+getErrorCount()+", mean="+(getMeanNanos()/1000)+"us, p50<"+getPercentileMicros(0.5)+"us, p99<"+getPercentileMicros(0.99)
+				+"us, max="+(getMaxNanos()/1000)+"us, rowsRead="+getRowsRead()+", rowsWritten="+getRowsWritten()+"]";
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A connection leased from a ConnectionPool.
+ * Closing the lease returns the connection to the pool rather than closing it.
+ *
+ * @author sean.cox
+ *
+ */
+class PooledConnection implements AutoCloseable {
+	private final ConnectionPool pool;
+	private final StatementCache statementCache;
+	private Connection connection;
+
+	/**
+	 * @param pool
+	 * @param connection
+	 * @param statementCache The statement cache belonging to the connection.
+	 */
+	PooledConnection(ConnectionPool pool, Connection connection, StatementCache statementCache) {
+		super();
+		this.pool = pool;
+		this.connection = connection;
+		this.statementCache = statementCache;
+	}
+
+	/**
+	 * @return The underlying connection. This must not be closed or retained by the caller.
+	 * @throws SQLException If the lease has already been closed.
+	 */
+	public Connection getConnection() throws SQLException{
+		if(connection==null)
+			throw new SQLException("Connection lease has been closed.");
+		return connection;
+	}
+
+	/**
+	 * The returned statement is cached with the connection and must not be closed by the caller.
+	 * Any ResultSet obtained from it should be closed before the lease is closed.
+	 *
+	 * @param sql
+	 * @return A PreparedStatement for the given SQL.
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepareStatement(String sql) throws SQLException{
+		getConnection();
+		return statementCache.prepareStatement(sql);
+	}
+
+	/**
+	 * @return A new Statement.
+	 * @throws SQLException
+	 */
+	public Statement createStatement() throws SQLException{
+		return getConnection().createStatement();
+	}
+
+	/**
+	 * Starts a transaction which lasts until commit() is called or the lease is closed.
+	 * If the lease is closed without committing, the transaction is rolled back.
+	 *
+	 * @throws SQLException
+	 */
+	public void beginTransaction() throws SQLException{
+		getConnection().setAutoCommit(false);
+	}
+
+	/**
+	 * Commits the transaction started by beginTransaction() and returns the connection to autocommit mode.
+	 *
+	 * @throws SQLException
+	 */
+	public void commit() throws SQLException{
+		Connection connection = getConnection();
+		connection.commit();
+		connection.setAutoCommit(true);
+	}
+
+	@Override
+	public void close() {
+		if(connection==null)
+			return;
+		pool.release(connection);
+		connection = null;
+	}
+}
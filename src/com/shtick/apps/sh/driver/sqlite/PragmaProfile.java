@@ -0,0 +1,76 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Named sets of SQLite PRAGMA settings applied to every connection the driver opens.
+ * Individual settings can be overridden through DriverConfiguration.
+ *
+ * @author sean.cox
+ *
+ */
+public enum PragmaProfile {
+	/**
+	 * SQLite's own defaults, which fully sync the database file on every commit.
+	 */
+	DEFAULT("busy_timeout", "5000"),
+	/**
+	 * Syncs the write-ahead log as well as the database on every commit, so that a committed transaction survives a power loss.
+	 */
+	DURABLE("busy_timeout", "5000", "synchronous", "EXTRA"),
+	/**
+	 * Suited to servers with memory to spare. Commits are not synced until a checkpoint, so a power loss may roll back
+	 * the most recent transactions, although the database cannot be corrupted. Reads go through a 256MB memory map
+	 * and each connection caches up to 64MB of pages.
+	 */
+	FAST("busy_timeout", "5000", "synchronous", "NORMAL", "cache_size", "-65536", "mmap_size", "268435456", "temp_store", "MEMORY"),
+	/**
+	 * Holds the database in memory, shared by the driver's connections, and discards it when the driver is closed.
+	 * Intended for tests and benchmarks. Unless a database URL is configured, each driver gets a database of its own.
+	 */
+	MEMORY("busy_timeout", "5000", "synchronous", "OFF", "temp_store", "MEMORY");
+
+	private final Map<String,String> pragmas;
+
+	private PragmaProfile(String... pragmas) {
+		LinkedHashMap<String,String> map = new LinkedHashMap<>();
+		for(int i=0;i<pragmas.length;i+=2)
+			map.put(pragmas[i], pragmas[i+1]);
+		this.pragmas = Collections.unmodifiableMap(map);
+	}
+
+	/**
+	 * @return The PRAGMA values set by this profile, by PRAGMA name.
+	 */
+	public Map<String,String> getPragmas(){
+		return pragmas;
+	}
+
+	/**
+	 * @return The database URL to use when none is configured, or null to use sh.quiz.db in the user's application data directory.
+	 */
+	public String getDefaultDatabaseURL(){
+		if(this==MEMORY)
+			return "jdbc:sqlite:file:sh-"+UUID.randomUUID()+"?mode=memory&cache=shared";
+		return null;
+	}
+
+	/**
+	 * @param name
+	 * @return The profile with the given name, ignoring case.
+	 * @throws IllegalArgumentException If there is no such profile.
+	 */
+	public static PragmaProfile forName(String name) throws IllegalArgumentException{
+		for(PragmaProfile profile:values()){
+			if(profile.name().equalsIgnoreCase(name.trim()))
+				return profile;
+		}
+		throw new IllegalArgumentException("Unknown PRAGMA profile: "+name);
+	}
+}
@@ -0,0 +1,181 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.shtick.apps.sh.core.QuizDesign;
+import com.shtick.apps.sh.core.QuizDesignID;
+import com.shtick.apps.sh.core.UserID;
+
+/**
+ * A bounded, least-recently-used cache of decoded quiz designs, both by ID and as per-user lists.
+ *
+ * Loads are read-through: the caller takes a generation number before reading from the database, and
+ * the result is only cached if no invalidation has happened since. This keeps a load that races with
+ * an update from caching the design as it was before the update.
+ *
+ * Designs are mutable, so the cache holds its own copies, and hands out a fresh copy on each lookup.
+ * A caller changing a design it was given therefore never changes what the cache returns to others.
+ *
+ * @author sean.cox
+ *
+ */
+class QuizDesignCache {
+	private final LinkedHashMap<QuizDesignID,QuizDesign> designs;
+	private final LinkedHashMap<UserID,Collection<QuizDesign>> userDesigns;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private long generation = 0;
+
+	/**
+	 * @param maxSize The maximum number of designs, and separately the maximum number of per-user design lists, to retain.
+	 *                A size of 0 disables caching.
+	 */
+	public QuizDesignCache(final int maxSize) {
+		super();
+		designs = new LinkedHashMap<QuizDesignID,QuizDesign>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<QuizDesignID,QuizDesign> eldest) {
+				return size()>maxSize;
+			}
+		};
+		userDesigns = new LinkedHashMap<UserID,Collection<QuizDesign>>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<UserID,Collection<QuizDesign>> eldest) {
+				return size()>maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @return A generation number to be passed to put() after loading from the database.
+	 */
+	public synchronized long getGeneration(){
+		return generation;
+	}
+
+	/**
+	 * @param designID
+	 * @return A copy of the cached design, or null if it is not cached.
+	 */
+	public synchronized QuizDesign get(QuizDesignID designID){
+		QuizDesign retval = designs.get(designID);
+		if(retval==null){
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return copy(retval);
+	}
+
+	/**
+	 * @param userID
+	 * @return A copy of the cached list of designs belonging to the user, holding copies of the designs, or null if it is not cached.
+	 */
+	public synchronized Collection<QuizDesign> getUserDesigns(UserID userID){
+		Collection<QuizDesign> retval = userDesigns.get(userID);
+		if(retval==null){
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		ArrayList<QuizDesign> copies = new ArrayList<>(retval.size());
+		for(QuizDesign design:retval)
+			copies.add(copy(design));
+		return copies;
+	}
+
+	/**
+	 * @param design A design loaded from the database.
+	 * @param generation The generation number taken before the design was loaded.
+	 */
+	public synchronized void put(QuizDesign design, long generation){
+		if(generation==this.generation)
+			designs.put(design.getQuizDesignID(), copy(design));
+	}
+
+	/**
+	 * @param userID
+	 * @param userDesigns The designs belonging to the user, loaded from the database.
+	 * @param generation The generation number taken before the designs were loaded.
+	 */
+	public synchronized void putUserDesigns(UserID userID, Collection<QuizDesign> userDesigns, long generation){
+		if(generation!=this.generation)
+			return;
+		ArrayList<QuizDesign> copies = new ArrayList<>(userDesigns.size());
+		for(QuizDesign design:userDesigns){
+			QuizDesign copy = copy(design);
+			copies.add(copy);
+			designs.put(copy.getQuizDesignID(), copy);
+		}
+		this.userDesigns.put(userID, copies);
+	}
+
+	/**
+	 * Removes a design, and any per-user list containing it.
+	 *
+	 * @param designID
+	 */
+	public synchronized void invalidate(QuizDesignID designID){
+		generation++;
+		designs.remove(designID);
+		Iterator<Collection<QuizDesign>> iter = userDesigns.values().iterator();
+		while(iter.hasNext()){
+			for(QuizDesign design:iter.next()){
+				if(design.getQuizDesignID().equals(designID)){
+					iter.remove();
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the list of designs belonging to a user, along with each of the user's designs.
+	 *
+	 * @param userID
+	 */
+	public synchronized void invalidateUser(UserID userID){
+		generation++;
+		userDesigns.remove(userID);
+		Iterator<QuizDesign> iter = designs.values().iterator();
+		while(iter.hasNext()){
+			if(iter.next().getUserID().equals(userID))
+				iter.remove();
+		}
+	}
+
+	/**
+	 * @param design
+	 * @return A design equal to the given one, with its own set of subjects.
+	 */
+	private static QuizDesign copy(QuizDesign design){
+		return new QuizDesign(design.getQuizDesignID(), design.getUserID(), design.getTitle(), new HashSet<>(design.getSubjects()), design.getMinQuestions(), design.getMaxQuestions(), design.getTimeAdded());
+	}
+
+	/**
+	 * @return The number of lookups answered from the cache.
+	 */
+	public long getHits(){
+		return hits.sum();
+	}
+
+	/**
+	 * @return The number of lookups that had to go to the database.
+	 */
+	public long getMisses(){
+		return misses.sum();
+	}
+}
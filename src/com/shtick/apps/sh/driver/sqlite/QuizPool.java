@@ -0,0 +1,186 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.shtick.apps.sh.core.QuizDesignID;
+import com.shtick.apps.sh.core.UserID;
+
+/**
+ * Holds a small number of staged quizes for each quiz design, so that a quiz can be handed out without
+ * waiting on the subject question generators. Pools are refilled by a single low priority background thread.
+ *
+ * Each pool is replaced, rather than emptied, when its design is invalidated, so that a refill already in
+ * progress for the old design adds its quizes to a pool nobody will read from again.
+ * Pools are kept for a limited number of designs, and the least recently used design's pool is discarded in the same way.
+ *
+ * @author sean.cox
+ *
+ */
+class QuizPool {
+	/**
+	 * Generates a staged quiz for a quiz design.
+	 */
+	interface Stager {
+		/**
+		 * @param designID
+		 * @return A newly generated quiz for the design, or null if the design no longer exists.
+		 * @throws IOException
+		 */
+		StagedQuiz stage(QuizDesignID designID) throws IOException;
+	}
+
+	private static class DesignPool {
+		private final UserID userID;
+		private final ArrayDeque<StagedQuiz> quizes = new ArrayDeque<>();
+		private boolean refilling = false;
+		private boolean invalidated = false;
+
+		public DesignPool(UserID userID) {
+			this.userID = userID;
+		}
+	}
+
+	private final int maxSize;
+	private final Stager stager;
+	private final LinkedHashMap<QuizDesignID,DesignPool> pools;
+	private final ExecutorService refillExecutor;
+
+	/**
+	 * @param maxSize The maximum number of staged quizes held for each quiz design. A size of 0 disables pooling.
+	 * @param maxDesigns The maximum number of quiz designs for which staged quizes are held.
+	 * @param stager
+	 */
+	public QuizPool(int maxSize, final int maxDesigns, Stager stager) {
+		super();
+		this.maxSize = maxSize;
+		this.stager = stager;
+		pools = new LinkedHashMap<QuizDesignID,DesignPool>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<QuizDesignID,DesignPool> eldest) {
+				if(size()<=maxDesigns)
+					return false;
+				eldest.getValue().invalidated = true;
+				return true;
+			}
+		};
+		if(maxSize==0){
+			refillExecutor = null;
+			return;
+		}
+		refillExecutor = Executors.newSingleThreadExecutor((runnable)->{
+			Thread thread = new Thread(runnable, "sh-driver-sqlite-quiz-pool");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+	}
+
+	/**
+	 * Takes a staged quiz for the design if one is available, and schedules the design's pool to be refilled.
+	 *
+	 * @param designID
+	 * @param userID The user the design belongs to.
+	 * @return A staged quiz, or null if none is available.
+	 */
+	public synchronized StagedQuiz take(QuizDesignID designID, UserID userID){
+		if(maxSize==0)
+			return null;
+		DesignPool pool = pools.get(designID);
+		if(pool==null){
+			pool = new DesignPool(userID);
+			pools.put(designID, pool);
+		}
+		StagedQuiz retval = pool.quizes.poll();
+		if(!pool.refilling){
+			pool.refilling = true;
+			final DesignPool refillPool = pool;
+			try{
+				refillExecutor.execute(()->refill(designID, refillPool));
+			}
+			catch(RejectedExecutionException t){
+				// The pool has been closed.
+				pool.refilling = false;
+			}
+		}
+		return retval;
+	}
+
+	private void refill(QuizDesignID designID, DesignPool pool){
+		try{
+			while(true){
+				synchronized(this){
+					if(pool.invalidated||(pool.quizes.size()>=maxSize)){
+						pool.refilling = false;
+						return;
+					}
+				}
+				StagedQuiz quiz = stager.stage(designID);
+				synchronized(this){
+					if(quiz==null){
+						pool.refilling = false;
+						return;
+					}
+					if(!pool.invalidated)
+						pool.quizes.add(quiz);
+				}
+			}
+		}
+		catch(IOException|RuntimeException t){
+			System.out.println("Failed to pre-generate a quiz for design "+designID+".");
+			t.printStackTrace();
+			synchronized(this){
+				pool.refilling = false;
+			}
+		}
+	}
+
+	/**
+	 * Discards any staged quizes for a design.
+	 *
+	 * @param designID
+	 */
+	public synchronized void invalidate(QuizDesignID designID){
+		DesignPool pool = pools.remove(designID);
+		if(pool!=null)
+			pool.invalidated = true;
+	}
+
+	/**
+	 * Discards any staged quizes for the designs belonging to a user.
+	 *
+	 * @param userID
+	 */
+	public synchronized void invalidateUser(UserID userID){
+		Iterator<DesignPool> iter = pools.values().iterator();
+		while(iter.hasNext()){
+			DesignPool pool = iter.next();
+			if(pool.userID.equals(userID)){
+				pool.invalidated = true;
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Stops the background refill and discards all staged quizes.
+	 */
+	public synchronized void close(){
+		if(refillExecutor!=null)
+			refillExecutor.shutdownNow();
+		for(DesignPool pool:pools.values())
+			pool.invalidated = true;
+		pools.clear();
+	}
+}
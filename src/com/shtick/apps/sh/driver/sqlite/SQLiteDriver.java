@@ -5,27 +5,37 @@ package com.shtick.apps.sh.driver.sqlite;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.io.UncheckedIOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
-import java.util.UUID;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.shtick.apps.sh.core.Answer;
 import com.shtick.apps.sh.core.AnswerID;
@@ -41,16 +51,7 @@ import com.shtick.apps.sh.core.Subject;
 import com.shtick.apps.sh.core.SubjectQuestionGenerator;
 import com.shtick.apps.sh.core.User;
 import com.shtick.apps.sh.core.UserID;
-import com.shtick.apps.sh.core.content.Marshal;
 import com.shtick.apps.sh.driver.sqlite.bundle.DriverActivator;
-import com.shtick.util.tokenizers.TokenTree;
-import com.shtick.util.tokenizers.json.JSONToken;
-import com.shtick.util.tokenizers.json.JSONTokenizer;
-import com.shtick.util.tokenizers.json.NumberToken;
-import com.shtick.util.tokenizers.json.ObjectPropertyToken;
-import com.shtick.util.tokenizers.json.ObjectToken;
-import com.shtick.utils.data.json.JSONDecoder;
-import com.shtick.utils.data.json.JSONEncoder;
 
 /**
  * @author sean.cox
@@ -60,14 +61,28 @@ public class SQLiteDriver implements Driver {
 	private static File WORKING_DIRECTORY;
 	private static final String OS = (System.getProperty("os.name")).toUpperCase();
 	private static final String DB_URL;
-	private static final Object DB_LOCK = new Object();
 	private static final Random RANDOM = new Random();
-	private static final JSONTokenizer jsonTokenizer = new JSONTokenizer();
+	private final Shards shards;
+	private final int deleteChunkSize;
+	private final QuizDesignCache quizDesignCache;
+	private final ExecutorService generatorExecutor;
+	private final QuizPool quizPool;
+	private final AnswerWriter answerWriter;
+	private final ConcurrentHashMap<Subject,TimingStatistics> generatorTimings = new ConcurrentHashMap<>();
+	private final DriverMetrics metrics = new DriverMetrics();
+	private final ScheduledExecutorService scheduler;
+	private final Snapshots snapshots;
+	private final int readerCount;
+	private final int statementCacheSize;
+	private final int shardCount;
+	private final int retentionDays;
+	private final int incrementalVacuumPages;
+	private final String archiveURL;
 	
 	static{
 		if (OS.contains("WIN")){
 		    String workingDirectory = System.getenv("AppData");
-		    WORKING_DIRECTORY = new File(workingDirectory);
+		    WORKING_DIRECTORY = (workingDirectory==null)?null:new File(workingDirectory);
 		}
 		else{ // Try Linux or related.
 		    String workingDirectory = System.getProperty("user.home");
@@ -78,16 +93,26 @@ public class SQLiteDriver implements Driver {
 			    WORKING_DIRECTORY = null;
 		}
 		if((WORKING_DIRECTORY==null)||(!WORKING_DIRECTORY.canWrite())){
-			// TODO Find the current application folder.
+			// Fall back on the directory the application was started from.
+			// A databaseURL can be configured where neither is suitable.
+			WORKING_DIRECTORY = new File(System.getProperty("user.dir"));
 		}
 		
 		DB_URL = "jdbc:sqlite:"+WORKING_DIRECTORY.toString()+"/sh.quiz.db";
 	}
 	
 	/**
-	 * 
+	 * Creates a driver configured from system properties.
 	 */
 	public SQLiteDriver() {
+		this(DriverConfiguration.fromProperties(System::getProperty));
+	}
+	
+	/**
+	 * 
+	 * @param configuration
+	 */
+	public SQLiteDriver(DriverConfiguration configuration) {
 		try{
 			Class.forName("org.sqlite.JDBC");
 		}
@@ -95,97 +120,411 @@ public class SQLiteDriver implements Driver {
 			throw new RuntimeException(t);
 		}
 		
-		synchronized(DB_LOCK){
-			System.out.println("DB_URL:"+DB_URL);
-			try (Connection connection = DriverManager.getConnection(DB_URL)) {
-				// Build the database if necessary.
-				if(connection==null)
-					throw new RuntimeException("Connection to database cannot be established.");
-				Statement statement = connection.createStatement();
-				statement.executeUpdate("CREATE TABLE IF NOT EXISTS users" +
-		                   "(id TEXT PRIMARY KEY     NOT NULL," +
-		                   " name           TEXT    NOT NULL," +
-		                   " time_added     TEXT    NOT NULL" +
-		                   ")");
-				statement.executeUpdate("CREATE TABLE IF NOT EXISTS quiz_designs" +
-		                   "(id            TEXT PRIMARY KEY NOT NULL," +
-		                   " user_id       TEXT    NOT NULL," +
-		                   " title         TEXT    NOT NULL," +
-		                   " subjects      TEXT   NOT NULL," +
-		                   " min_questions INT   NOT NULL," +
-		                   " max_questions INT   NOT NULL," +
-		                   " time_added    TEXT    NOT NULL" +
-		                   ")");
-				statement.executeUpdate("CREATE TABLE IF NOT EXISTS quizes" +
-		                   "(id            TEXT PRIMARY KEY NOT NULL," +
-		                   " user_id       TEXT    NOT NULL," +
-		                   " time_added    TEXT    NOT NULL" +
-		                   ")");
-				statement.executeUpdate("CREATE TABLE IF NOT EXISTS questions" +
-		                   "(id            TEXT PRIMARY KEY NOT NULL," +
-		                   " quiz_id       TEXT    NOT NULL," +
-		                   " q_order       INT     NOT NULL," +
-		                   " subject       TEXT    NOT NULL," +
-		                   " prompt        TEXT    NOT NULL," +
-		                   " prompt_format TEXT    NOT NULL," +
-		                   " answer        TEXT    NOT NULL," +
-		                   " answer_format TEXT    NOT NULL," +
-		                   " answer_value  TEXT    NOT NULL," +
-		                   " dimensions    TEXT    NOT NULL," +
-		                   " points        INT     NOT NULL," +
-		                   " time_added    TEXT    NOT NULL" +
-		                   ")");
-				statement.executeUpdate("CREATE TABLE IF NOT EXISTS answers" +
-		                   "(id            TEXT PRIMARY KEY NOT NULL," +
-		                   " question_id   TEXT    NOT NULL," +
-		                   " answer_value  TEXT    NOT NULL," +
-		                   " points        INT     NOT NULL," +
-		                   " time_asked    TEXT    NOT NULL," +
-		                   " time_answered TEXT    NOT NULL" +
-		                   ")");
-				statement.close();
+		deleteChunkSize = configuration.getDeleteChunkSize();
+		quizDesignCache = new QuizDesignCache(configuration.getQuizDesignCacheSize());
+		String databaseURL = configuration.getDatabaseURL();
+		if(databaseURL==null)
+			databaseURL = configuration.getPragmaProfile().getDefaultDatabaseURL();
+		if(databaseURL==null)
+			databaseURL = DB_URL;
+		System.out.println("DB_URL:"+databaseURL);
+		if((configuration.getRetentionDays()>0)&&(Snapshots.getDatabaseFile(databaseURL)==null))
+			throw new IllegalArgumentException("Quizes cannot be archived from the in-memory database "+databaseURL+".");
+		final boolean maintained = !configuration.isReadOnly()&&((configuration.getRetentionDays()>0)||(configuration.getIncrementalVacuumPages()>0));
+		final SlowQueryLog slowQueryLog = (configuration.getSlowQueryThresholdMillis()>0)?new SlowQueryLog(configuration.getSlowQueryThresholdMillis(), configuration.isSlowQueryLogParameters(), metrics):null;
+		try{
+			shards = new Shards(databaseURL, configuration.getShardCount(), (url)->{
+				ConnectionPool pool = new ConnectionPool(url, configuration.getReaderCount(), configuration.getStatementCacheSize(), configuration.getPragmas(), configuration.isReadOnly(), metrics, slowQueryLog);
+				try (PooledConnection connection = pool.acquireWriter()) {
+					// Build or upgrade the database if necessary.
+					if(configuration.isReadOnly())
+						Schema.checkVersion(connection.getConnection());
+					else
+						Schema.migrate(connection.getConnection());
+					if(maintained&&(configuration.getIncrementalVacuumPages()>0))
+						Maintenance.enableIncrementalVacuum(connection.getConnection());
+				}
+				catch(SQLException t){
+					pool.close();
+					throw t;
+				}
+				return pool;
+			});
+		}
+		catch(SQLException t){
+			throw new RuntimeException(t);
+		}
+		// Anything started from here on is shut down again if the driver cannot be created, along with the pools.
+		QuizPool quizPool = null;
+		ExecutorService generatorExecutor = null;
+		AnswerWriter answerWriter = null;
+		ScheduledExecutorService scheduler = null;
+		try{
+			this.quizPool = quizPool = new QuizPool(configuration.getQuizPoolSize(), configuration.getQuizPoolDesigns(), (designID)->{
+				QuizDesign quizDesign = getQuizDesign(designID);
+				if(quizDesign==null)
+					return null;
+				return metrics.measure("stageQuiz", ()->stageQuiz(quizDesign));
+			});
+			this.generatorExecutor = generatorExecutor = createGeneratorExecutor(configuration);
+			if(configuration.isAsyncAnswers())
+				answerWriter = new AnswerWriter((answers)->metrics.measure("writeAnswerBatch", ()->writeAnswers(answers)), configuration.getAnswerBatchSize(), configuration.getAnswerMaxLatencyMillis());
+			this.answerWriter = answerWriter;
+			readerCount = configuration.getReaderCount();
+			statementCacheSize = configuration.getStatementCacheSize();
+			shardCount = configuration.getShardCount();
+			retentionDays = maintained?configuration.getRetentionDays():0;
+			incrementalVacuumPages = maintained?configuration.getIncrementalVacuumPages():0;
+			archiveURL = Maintenance.getArchiveURL(databaseURL);
+			if(retentionDays>0){
+				try{
+					for(int i=0;i<shards.getPools().size();i++)
+						Maintenance.prepareArchive(getArchiveURL(i));
+				}
+				catch(SQLException t){
+					throw new RuntimeException(t);
+				}
+			}
+			Snapshots snapshots = null;
+			try{
+				snapshots = new Snapshots(databaseURL, configuration.getSnapshotDirectory());
+			}
+			catch(IllegalArgumentException t){
+				// An in-memory database without a snapshot directory cannot be snapshotted.
+				if(configuration.getSnapshotIntervalMinutes()>0)
+					throw t;
+			}
+			this.snapshots = snapshots;
+			if((configuration.getMetricsLogIntervalSeconds()>0)||(configuration.getSnapshotIntervalMinutes()>0)||maintained){
+				scheduler = Executors.newSingleThreadScheduledExecutor((runnable)->{
+					Thread thread = new Thread(runnable, "sh-driver-sqlite-scheduler");
+					thread.setDaemon(true);
+					return thread;
+				});
+			}
+			this.scheduler = scheduler;
+			if(configuration.getMetricsLogIntervalSeconds()>0)
+				scheduler.scheduleAtFixedRate(()->System.out.println("SQLiteDriver metrics: "+metrics), configuration.getMetricsLogIntervalSeconds(), configuration.getMetricsLogIntervalSeconds(), TimeUnit.SECONDS);
+			if(configuration.getSnapshotIntervalMinutes()>0)
+				scheduler.scheduleWithFixedDelay(this::takeScheduledSnapshot, configuration.getSnapshotIntervalMinutes(), configuration.getSnapshotIntervalMinutes(), TimeUnit.MINUTES);
+			if(maintained)
+				scheduler.scheduleWithFixedDelay(this::runScheduledMaintenance, configuration.getMaintenanceIntervalMinutes(), configuration.getMaintenanceIntervalMinutes(), TimeUnit.MINUTES);
+		}
+		catch(RuntimeException t){
+			if(scheduler!=null)
+				scheduler.shutdownNow();
+			if(quizPool!=null)
+				quizPool.close();
+			if(answerWriter!=null){
+				try{
+					// Nothing has been queued yet, so this only stops the writer thread.
+					answerWriter.close();
+				}
+				catch(IOException t2){
+					t.addSuppressed(t2);
+				}
+			}
+			if(generatorExecutor!=null)
+				generatorExecutor.shutdownNow();
+			shards.close();
+			throw t;
+		}
+	}
+
+	/**
+	 * 
+	 * @param configuration
+	 * @return An executor for running subject question generators, or null if they should run on the calling thread.
+	 */
+	private static ExecutorService createGeneratorExecutor(DriverConfiguration configuration){
+		if(configuration.getGeneratorThreads()==0)
+			return null;
+		if(configuration.isVirtualGeneratorThreads()){
+			try{
+				// Looked up reflectively so that the driver still runs on JVMs without virtual threads.
+				return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			}
+			catch(ReflectiveOperationException t){
+				// Fall through to platform threads.
+			}
+		}
+		final AtomicInteger threadCount = new AtomicInteger();
+		return Executors.newFixedThreadPool(configuration.getGeneratorThreads(), (runnable)->{
+			Thread thread = new Thread(runnable, "sh-driver-sqlite-generator-"+threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Saves any queued answers, and closes all database connections held by this driver.
+	 * The driver cannot be used after it has been closed.
+	 * 
+	 * @throws IOException If any queued answers could not be saved. The driver is closed regardless.
+	 */
+	public void close() throws IOException{
+		if(scheduler!=null){
+			scheduler.shutdownNow();
+			try{
+				// Let a snapshot in progress finish before its connection is closed.
+				scheduler.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			catch(InterruptedException t){
+				Thread.currentThread().interrupt();
+			}
+		}
+		quizPool.close();
+		IOException answerFailure = null;
+		if(answerWriter!=null){
+			try{
+				answerWriter.close();
+			}
+			catch(IOException t){
+				answerFailure = t;
+			}
+		}
+		if(generatorExecutor!=null)
+			generatorExecutor.shutdownNow();
+		shards.close();
+		if(answerFailure!=null)
+			throw answerFailure;
+	}
+
+	/**
+	 * Copies the database to a snapshot file, replacing any previous snapshot, for use by reporting queries.
+	 * The copy is consistent, and writers are not held up while it is made.
+	 * 
+	 * @return The snapshot file. With sharding, this is the snapshot of the catalog, and each shard has a snapshot named after it.
+	 * @throws IOException If the snapshot cannot be written, or the database is in memory and no snapshot directory is configured.
+	 */
+	public File takeSnapshot() throws IOException{
+		return metrics.measure("takeSnapshot", ()->{
+			if(snapshots==null)
+				throw new IOException("A snapshot directory must be configured to take snapshots of an in-memory database.");
+			flushAnswers();
+			return snapshots.take(shards.getPools());
+		});
+	}
+	
+	private void takeScheduledSnapshot(){
+		try{
+			takeSnapshot();
+		}
+		catch(IOException|RuntimeException t){
+			// Keep the schedule running, so that a transient failure does not stop later snapshots.
+			t.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Opens a read-only driver on the latest snapshot, so that reporting queries do not compete with the live database.
+	 * The returned driver keeps reading the snapshot it was opened on, even after a newer snapshot is taken,
+	 * so a view should be reopened to see newer data. It should be closed when no longer needed.
+	 * Any call on the view which would write to the database fails with an IOException.
+	 * 
+	 * @return A read-only driver on the latest snapshot.
+	 * @throws IOException If no snapshot has been taken.
+	 */
+	public SQLiteDriver openSnapshot() throws IOException{
+		if((snapshots==null)||!snapshots.exists())
+			throw new IOException("No snapshot has been taken.");
+		return openReadOnly(snapshots.getSnapshotURL());
+	}
+	
+	/**
+	 * Opens a read-only driver on the archive, to look up quizes which have been moved out of the live database.
+	 * Archived quizes are not listed by the live database, and the view sees quizes archived after it was opened.
+	 * It should be closed when no longer needed.
+	 * 
+	 * @return A read-only driver on the archive.
+	 * @throws IOException If retention is not enabled, or nothing has been archived yet.
+	 */
+	public SQLiteDriver openArchive() throws IOException{
+		if((retentionDays==0)||!Snapshots.getDatabaseFile(archiveURL).exists())
+			throw new IOException("No quizes have been archived.");
+		return openReadOnly(archiveURL);
+	}
+	
+	private SQLiteDriver openReadOnly(String databaseURL) throws IOException{
+		DriverConfiguration configuration = new DriverConfiguration();
+		configuration.setDatabaseURL(databaseURL);
+		configuration.setShardCount(shardCount);
+		configuration.setReaderCount(readerCount);
+		configuration.setStatementCacheSize(statementCacheSize);
+		configuration.setReadOnly(true);
+		try{
+			return new SQLiteDriver(configuration);
+		}
+		catch(RuntimeException t){
+			throw new IOException(t);
+		}
+	}
+	
+	/**
+	 * Moves quizes older than the retention period to the archive, and returns free pages to the file system,
+	 * as configured. This runs in the background at the maintenance interval, and may also be called directly.
+	 * The work is done in small transactions, so that other writes are held up only briefly.
+	 * 
+	 * @throws IOException
+	 */
+	public void runMaintenance() throws IOException{
+		metrics.measure("runMaintenance", ()->{
+			flushAnswers();
+			List<ConnectionPool> pools = shards.getPools();
+			try{
+				if(retentionDays>0){
+					long cutoff = System.currentTimeMillis()-TimeUnit.DAYS.toMillis(retentionDays);
+					for(int i=0;i<pools.size();i++){
+						int archived;
+						do{
+							try (PooledConnection connection = pools.get(i).acquireWriter()) {
+								archived = Maintenance.archiveQuizes(connection, getArchiveURL(i), cutoff, deleteChunkSize);
+							}
+						}while(archived==deleteChunkSize);
+					}
+				}
+				if(incrementalVacuumPages>0){
+					for(ConnectionPool pool:pools){
+						boolean remaining;
+						do{
+							try (PooledConnection connection = pool.acquireWriter()) {
+								remaining = Maintenance.vacuumIncrementally(connection, incrementalVacuumPages);
+							}
+						}while(remaining);
+						try (PooledConnection connection = pool.acquireWriter()) {
+							Maintenance.checkpoint(connection);
+						}
+					}
+				}
 			}
 			catch(SQLException t){
-				throw new RuntimeException(t);
+				throw new IOException(t);
 			}
+		});
+	}
+	
+	private void runScheduledMaintenance(){
+		try{
+			runMaintenance();
+		}
+		catch(IOException|RuntimeException t){
+			// Keep the schedule running, so that a transient failure does not stop later maintenance.
+			t.printStackTrace();
 		}
 	}
+	
+	/**
+	 * @param pool The index of a pool in the list returned by Shards.getPools().
+	 * @return The URL of the archive for the pool's database.
+	 */
+	private String getArchiveURL(int pool){
+		if(pool==0)
+			return archiveURL;
+		return Shards.getShardURL(archiveURL, pool-1);
+	}
+
+	/**
+	 * Blocks until every answer passed to saveAnswer before this call has been saved.
+	 * Does nothing unless answers are being saved asynchronously.
+	 * 
+	 * @throws IOException If the calling thread is interrupted while waiting,
+	 *                     or if any queued answers could not be saved since such failures were last reported.
+	 */
+	public void flushAnswers() throws IOException{
+		if(answerWriter!=null)
+			answerWriter.flush();
+	}
+
+	/**
+	 * Blocks until every answer passed to saveAnswer before this call has been saved, if any answer not yet saved belongs to the given ID.
+	 * 
+	 * @param key The ID of an answer, or of the question, quiz or user it belongs to.
+	 * @throws IOException If the calling thread is interrupted while waiting, or if any queued answers could not be saved.
+	 */
+	private void flushAnswers(Object key) throws IOException{
+		if(answerWriter!=null)
+			answerWriter.flush(key);
+	}
+
+	/**
+	 * @return The latency, error and row counts of each operation performed by this driver, and the time spent waiting for connections.
+	 */
+	public DriverMetrics getMetrics(){
+		return metrics;
+	}
+
+	/**
+	 * @return The number of times a cached prepared statement has been reused since this driver was created.
+	 */
+	public long getStatementCacheHits(){
+		return shards.sum(ConnectionPool::getStatementCacheHits);
+	}
+
+	/**
+	 * @return The number of times a statement had to be compiled since this driver was created.
+	 */
+	public long getStatementCacheMisses(){
+		return shards.sum(ConnectionPool::getStatementCacheMisses);
+	}
+
+	/**
+	 * @return The number of quiz design lookups, by ID or by user, answered without reading the database since this driver was created.
+	 */
+	public long getQuizDesignCacheHits(){
+		return quizDesignCache.getHits();
+	}
+
+	/**
+	 * @return The number of quiz design lookups, by ID or by user, that had to read the database since this driver was created.
+	 */
+	public long getQuizDesignCacheMisses(){
+		return quizDesignCache.getMisses();
+	}
+
+	/**
+	 * @return The time taken by each subject's question generator, for all quizes generated since this driver was created.
+	 */
+	public Map<Subject,TimingStatistics> getGeneratorTimings(){
+		return Collections.unmodifiableMap(generatorTimings);
+	}
 
 	@Override
 	public UserID createUser(String username) throws IOException {
-		String sql = "INSERT INTO users " +
-                "(id, name, time_added) " +
-				"VALUES (?,?,?)";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				String id = UUID.randomUUID().toString();
-				statement.setString(1, id);
+		return metrics.measure("createUser", ()->{
+			String sql = "INSERT INTO users " +
+	                "(id, name, time_added, time_added_zone) " +
+					"VALUES (?,?,?,?)";
+			try (PooledConnection connection = shards.getCatalog().acquireWriter()) {
+				PreparedStatement statement = connection.prepareStatement(sql);
+				String id = Keys.createUUID().toString();
+				Keys.bind(statement, 1, id);
 				statement.setString(2, username);
-				statement.setString(3, ZonedDateTime.now().format(DateTimeFormatter.ISO_DATE_TIME));
+				Timestamps.bind(statement, 3, ZonedDateTime.now());
 				statement.executeUpdate();
 				return new UserID(id);
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
-		}
+		});
 	}
 
 	@Override
 	public void updateUser(UserID userID, String username) throws IOException {
-		String sql = "UPDATE users " +
-                "SET name = ? " +
-				"WHERE id = ?";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
+		metrics.measure("updateUser", ()->{
+			String sql = "UPDATE users " +
+	                "SET name = ? " +
+					"WHERE id = ?";
+			try (PooledConnection connection = shards.getCatalog().acquireWriter()) {
+				PreparedStatement statement = connection.prepareStatement(sql);
 				statement.setString(1, username);
-				statement.setString(2, userID.toString());
+				Keys.bind(statement, 2, userID);
 				statement.executeUpdate();
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
-		}
+		});
 	}
 
 	/* (non-Javadoc)
@@ -193,17 +532,89 @@ public class SQLiteDriver implements Driver {
 	 */
 	@Override
 	public void deleteUser(UserID userID) throws IOException {
-		String sql = "DELETE FROM users " +
-				"WHERE id = ?";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				statement.setString(1, userID.toString());
+		metrics.measure("deleteUser", ()->{
+			flushAnswers(userID);
+			// Quizes are removed in chunks, each in its own transaction, so that a user with a long history
+			// does not hold the writer for the whole cascade. The user is removed last, so that an interrupted
+			// deletion can be completed by calling deleteUser again.
+			String sql = "SELECT id " +
+					"FROM quizes " +
+					"WHERE user_id = ? " +
+					"LIMIT ?";
+			ConnectionPool shard = shards.getShard(userID);
+			while(true){
+				try (PooledConnection connection = shard.acquireWriter()) {
+					PreparedStatement statement = connection.prepareStatement(sql);
+					Keys.bind(statement, 1, userID);
+					statement.setInt(2, deleteChunkSize);
+					ArrayList<String> quizIDs = new ArrayList<>(deleteChunkSize);
+					try (ResultSet resultSet = statement.executeQuery()) {
+						while(resultSet.next())
+							quizIDs.add(Keys.read(resultSet, 1));
+					}
+					if(quizIDs.isEmpty())
+						break;
+					connection.beginTransaction();
+					deleteQuizes(connection, quizIDs);
+					connection.commit();
+				}
+				catch(SQLException t){
+					throw new IOException(t);
+				}
+			}
+			// Archived quizes are removed in the same way, whether or not quizes are still being archived.
+			String shardArchiveURL = getArchiveURL(shards.getPools().indexOf(shard));
+			File archiveFile = Snapshots.getDatabaseFile(shardArchiveURL);
+			if((archiveFile!=null)&&archiveFile.exists()){
+				try{
+					Maintenance.prepareArchive(shardArchiveURL);
+					while(true){
+						try (PooledConnection connection = shard.acquireWriter()) {
+							if(Maintenance.deleteArchivedUserQuizes(connection, shardArchiveURL, userID.toString(), deleteChunkSize)<deleteChunkSize)
+								break;
+						}
+					}
+				}
+				catch(SQLException t){
+					throw new IOException(t);
+				}
+			}
+			try (PooledConnection connection = shard.acquireWriter()) {
+				connection.beginTransaction();
+				sql = "DELETE FROM quiz_design_subjects " +
+						"WHERE design_id IN (SELECT id FROM quiz_designs WHERE user_id = ?)";
+				PreparedStatement statement = connection.prepareStatement(sql);
+				Keys.bind(statement, 1, userID);
+				statement.executeUpdate();
+				sql = "DELETE FROM quiz_designs " +
+						"WHERE user_id = ?";
+				statement = connection.prepareStatement(sql);
+				Keys.bind(statement, 1, userID);
+				statement.executeUpdate();
+				sql = "DELETE FROM users " +
+						"WHERE id = ?";
+				statement = connection.prepareStatement(sql);
+				Keys.bind(statement, 1, userID);
 				statement.executeUpdate();
+				DimensionStatisticsTable.removeUser(connection::prepareStatement, userID.toString());
+				connection.commit();
+				quizDesignCache.invalidateUser(userID);
+				quizPool.invalidateUser(userID);
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
-		}
+			if(!shards.isSharded())
+				return;
+			try (PooledConnection connection = shards.getCatalog().acquireWriter()) {
+				PreparedStatement statement = connection.prepareStatement(sql);
+				Keys.bind(statement, 1, userID);
+				statement.executeUpdate();
+			}
+			catch(SQLException t){
+				throw new IOException(t);
+			}
+		});
 	}
 
 	/* (non-Javadoc)
@@ -211,24 +622,23 @@ public class SQLiteDriver implements Driver {
 	 */
 	@Override
 	public User getUser(UserID userID) throws IOException {
-		String sql = "SELECT id, name, time_added " +
-				"FROM users " +
-				"WHERE id = ?";
-		synchronized(DB_LOCK){
-			try (
-					Connection connection = DriverManager.getConnection(DB_URL);
-					PreparedStatement statement = connection.prepareStatement(sql);
-			) {
-				statement.setString(1, userID.toString());
-				ResultSet resultSet = statement.executeQuery();
-				if(!resultSet.next())
-					return null;
-				return getUserFromResultSetRow(resultSet);
+		return metrics.measure("getUser", ()->{
+			String sql = "SELECT id, name, time_added, time_added_zone " +
+					"FROM users " +
+					"WHERE id = ?";
+			try (PooledConnection connection = shards.getCatalog().acquireReader()) {
+				PreparedStatement statement = connection.prepareStatement(sql);
+				Keys.bind(statement, 1, userID);
+				try (ResultSet resultSet = statement.executeQuery()) {
+					if(!resultSet.next())
+						return null;
+					return getUserFromResultSetRow(resultSet);
+				}
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
-		}
+		});
 	}
 
 	/* (non-Javadoc)
@@ -236,23 +646,22 @@ public class SQLiteDriver implements Driver {
 	 */
 	@Override
 	public Collection<User> getUsers() throws IOException {
-		String sql = "SELECT id, name, time_added " +
-				"FROM users";
-		synchronized(DB_LOCK){
-			try (
-					Connection connection = DriverManager.getConnection(DB_URL);
-					PreparedStatement statement = connection.prepareStatement(sql);
-			) {
-				ResultSet resultSet = statement.executeQuery();
-				LinkedList<User> retval = new LinkedList<>();
-				while(resultSet.next())
-					retval.add(getUserFromResultSetRow(resultSet));
-				return retval;
+		return metrics.measure("getUsers", ()->{
+			String sql = "SELECT id, name, time_added, time_added_zone " +
+					"FROM users";
+			try (PooledConnection connection = shards.getCatalog().acquireReader()) {
+				PreparedStatement statement = connection.prepareStatement(sql);
+				try (ResultSet resultSet = statement.executeQuery()) {
+					LinkedList<User> retval = new LinkedList<>();
+					while(resultSet.next())
+						retval.add(getUserFromResultSetRow(resultSet));
+					return retval;
+				}
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
-		}
+		});
 	}
 
 	/* (non-Javadoc)
@@ -260,31 +669,30 @@ public class SQLiteDriver implements Driver {
 	 */
 	@Override
 	public QuizDesignID createQuizDesign(QuizDesign quizDesign) throws IOException {
-		String sql = "INSERT INTO quiz_designs " +
-                "(id, user_id, title, subjects, min_questions, max_questions, time_added) " +
-				"VALUES (?,?,?,?,?,?,?)";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				String id = UUID.randomUUID().toString();
-				statement.setString(1, id);
-				statement.setString(2, quizDesign.getUserID().toString());
+		return metrics.measure("createQuizDesign", ()->{
+			String sql = "INSERT INTO quiz_designs " +
+	                "(id, user_id, title, min_questions, max_questions, time_added, time_added_zone) " +
+					"VALUES (?,?,?,?,?,?,?)";
+			try (PooledConnection connection = shards.getShard(quizDesign.getUserID()).acquireWriter()) {
+				connection.beginTransaction();
+				PreparedStatement statement = connection.prepareStatement(sql);
+				String id = shards.createID(quizDesign.getUserID());
+				Keys.bind(statement, 1, id);
+				Keys.bind(statement, 2, quizDesign.getUserID());
 				statement.setString(3, quizDesign.getTitle());
-				{
-					ArrayList<Map<String,Object>> subjects=new ArrayList<>(quizDesign.getSubjects().size());
-					for(QuizDesignSubject subject:quizDesign.getSubjects())
-						subjects.add(Marshal.marshal(subject));
-					statement.setString(4, JSONEncoder.encode(subjects.toArray()));
-				}
-				statement.setInt(5, quizDesign.getMinQuestions());
-				statement.setInt(6, quizDesign.getMaxQuestions());
-				statement.setString(7, ZonedDateTime.now().format(DateTimeFormatter.ISO_DATE_TIME));
+				statement.setInt(4, quizDesign.getMinQuestions());
+				statement.setInt(5, quizDesign.getMaxQuestions());
+				Timestamps.bind(statement, 6, ZonedDateTime.now());
 				statement.executeUpdate();
+				insertQuizDesignSubjects(connection, id, quizDesign.getSubjects());
+				connection.commit();
+				quizDesignCache.invalidateUser(quizDesign.getUserID());
 				return new QuizDesignID(id);
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
-		}
+		});
 	}
 
 	/* (non-Javadoc)
@@ -292,28 +700,35 @@ public class SQLiteDriver implements Driver {
 	 */
 	@Override
 	public void updateQuizDesign(QuizDesign quizDesign) throws IOException {
-		String sql = "UPDATE quiz_designs " +
-                "SET user_id = ?, title = ?, subjects = ?, min_questions = ?, max_questions = ? " +
-				"WHERE id = ?";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				statement.setString(6, quizDesign.getQuizDesignID().toString());
-				statement.setString(1, quizDesign.getUserID().toString());
+		metrics.measure("updateQuizDesign", ()->{
+			ConnectionPool shard = shards.getShard(quizDesign.getQuizDesignID());
+			if(shard!=shards.getShard(quizDesign.getUserID()))
+				throw new IllegalArgumentException("A quiz design cannot be given to a user in another shard.");
+			String sql = "UPDATE quiz_designs " +
+	                "SET user_id = ?, title = ?, min_questions = ?, max_questions = ? " +
+					"WHERE id = ?";
+			try (PooledConnection connection = shard.acquireWriter()) {
+				connection.beginTransaction();
+				PreparedStatement statement = connection.prepareStatement(sql);
+				Keys.bind(statement, 5, quizDesign.getQuizDesignID());
+				Keys.bind(statement, 1, quizDesign.getUserID());
 				statement.setString(2, quizDesign.getTitle());
-				{
-					ArrayList<Map<String,Object>> subjects=new ArrayList<>(quizDesign.getSubjects().size());
-					for(QuizDesignSubject subject:quizDesign.getSubjects())
-						subjects.add(Marshal.marshal(subject));
-					statement.setString(3, JSONEncoder.encode(subjects.toArray()));
-				}
-				statement.setInt(4, quizDesign.getMinQuestions());
-				statement.setInt(5, quizDesign.getMaxQuestions());
+				statement.setInt(3, quizDesign.getMinQuestions());
+				statement.setInt(4, quizDesign.getMaxQuestions());
+				statement.executeUpdate();
+				statement = connection.prepareStatement("DELETE FROM quiz_design_subjects WHERE design_id = ?");
+				Keys.bind(statement, 1, quizDesign.getQuizDesignID());
 				statement.executeUpdate();
+				insertQuizDesignSubjects(connection, quizDesign.getQuizDesignID().toString(), quizDesign.getSubjects());
+				connection.commit();
+				quizDesignCache.invalidate(quizDesign.getQuizDesignID());
+				quizPool.invalidate(quizDesign.getQuizDesignID());
+				quizDesignCache.invalidateUser(quizDesign.getUserID());
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
-		}
+		});
 	}
 
 	/* (non-Javadoc)
@@ -321,22 +736,28 @@ public class SQLiteDriver implements Driver {
 	 */
 	@Override
 	public Collection<QuizDesign> getQuizDesigns(UserID userID) throws IOException {
-		String sql = "SELECT id, user_id, title, subjects, min_questions, max_questions, time_added " +
-				"FROM quiz_designs " +
-				"WHERE user_id = ?";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				statement.setString(1, userID.toString());
-				ResultSet resultSet = statement.executeQuery();
-				LinkedList<QuizDesign> retval = new LinkedList<>();
-				while(resultSet.next())
-					retval.add(getQuizDesignFromResultSetRow(resultSet));
-				return retval;
+		return metrics.measure("getQuizDesigns", ()->{
+			Collection<QuizDesign> cached = quizDesignCache.getUserDesigns(userID);
+			if(cached!=null)
+				return cached;
+			long cacheGeneration = quizDesignCache.getGeneration();
+			String sql = "SELECT d.id, d.user_id, d.title, d.min_questions, d.max_questions, d.time_added, d.time_added_zone, s.subject, s.min_questions, s.max_questions " +
+					"FROM quiz_designs d LEFT JOIN quiz_design_subjects s ON s.design_id = d.id " +
+					"WHERE d.user_id = ? " +
+					"ORDER BY d.id";
+			try (PooledConnection connection = shards.getShard(userID).acquireReader()) {
+				PreparedStatement statement = connection.prepareStatement(sql);
+				Keys.bind(statement, 1, userID);
+				try (ResultSet resultSet = statement.executeQuery()) {
+					List<QuizDesign> retval = getQuizDesignsFromResultSet(resultSet);
+					quizDesignCache.putUserDesigns(userID, retval, cacheGeneration);
+					return retval;
+				}
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
-		}
+		});
 	}
 
 	/* (non-Javadoc)
@@ -344,21 +765,30 @@ public class SQLiteDriver implements Driver {
 	 */
 	@Override
 	public QuizDesign getQuizDesign(QuizDesignID designID) throws IOException {
-		String sql = "SELECT id, user_id, title, subjects, min_questions, max_questions, time_added " +
-				"FROM quiz_designs " +
-				"WHERE id = ?";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				statement.setString(1, designID.toString());
-				ResultSet resultSet = statement.executeQuery();
-				if(!resultSet.next())
-					return null;
-				return getQuizDesignFromResultSetRow(resultSet);
+		return metrics.measure("getQuizDesign", ()->{
+			QuizDesign cached = quizDesignCache.get(designID);
+			if(cached!=null)
+				return cached;
+			long cacheGeneration = quizDesignCache.getGeneration();
+			String sql = "SELECT d.id, d.user_id, d.title, d.min_questions, d.max_questions, d.time_added, d.time_added_zone, s.subject, s.min_questions, s.max_questions " +
+					"FROM quiz_designs d LEFT JOIN quiz_design_subjects s ON s.design_id = d.id " +
+					"WHERE d.id = ?";
+			try (PooledConnection connection = shards.getShard(designID).acquireReader()) {
+				PreparedStatement statement = connection.prepareStatement(sql);
+				Keys.bind(statement, 1, designID);
+				try (ResultSet resultSet = statement.executeQuery()) {
+					List<QuizDesign> designs = getQuizDesignsFromResultSet(resultSet);
+					if(designs.isEmpty())
+						return null;
+					QuizDesign retval = designs.get(0);
+					quizDesignCache.put(retval, cacheGeneration);
+					return retval;
+				}
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
-		}
+		});
 	}
 
 	/* (non-Javadoc)
@@ -366,17 +796,58 @@ public class SQLiteDriver implements Driver {
 	 */
 	@Override
 	public void deleteQuizDesign(QuizDesignID designID) throws IOException {
-		String sql = "DELETE FROM quiz_designs " +
-				"WHERE id = ?";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				statement.setString(1, designID.toString());
-				statement.executeUpdate();
+		metrics.measure("deleteQuizDesign", ()->{
+			String[] sqls = {
+					"DELETE FROM quiz_design_subjects " +
+					"WHERE design_id = ?",
+					"DELETE FROM quiz_designs " +
+					"WHERE id = ?"
+			};
+			try (PooledConnection connection = shards.getShard(designID).acquireWriter()) {
+				connection.beginTransaction();
+				for(String sql:sqls){
+					PreparedStatement statement = connection.prepareStatement(sql);
+					Keys.bind(statement, 1, designID);
+					statement.executeUpdate();
+				}
+				connection.commit();
+				quizDesignCache.invalidate(designID);
+				quizPool.invalidate(designID);
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
-		}
+		});
+	}
+
+	/**
+	 * Finds the quiz designs of every user which include a subject, using the index on design subjects.
+	 * 
+	 * @param subject
+	 * @return The quiz designs which include the subject.
+	 * @throws IOException
+	 */
+	public Collection<QuizDesign> getSubjectQuizDesigns(Subject subject) throws IOException {
+		return metrics.measure("getSubjectQuizDesigns", ()->{
+			String sql = "SELECT d.id, d.user_id, d.title, d.min_questions, d.max_questions, d.time_added, d.time_added_zone, s.subject, s.min_questions, s.max_questions " +
+					"FROM quiz_designs d LEFT JOIN quiz_design_subjects s ON s.design_id = d.id " +
+					"WHERE d.id IN (SELECT design_id FROM quiz_design_subjects WHERE subject = ?) " +
+					"ORDER BY d.id";
+			ArrayList<QuizDesign> retval = new ArrayList<>();
+			for(ConnectionPool pool:shards.getPools()){
+				try (PooledConnection connection = pool.acquireReader()) {
+					PreparedStatement statement = connection.prepareStatement(sql);
+					statement.setString(1, subject.toString());
+					try (ResultSet resultSet = statement.executeQuery()) {
+						retval.addAll(getQuizDesignsFromResultSet(resultSet));
+					}
+				}
+				catch(SQLException t){
+					throw new IOException(t);
+				}
+			}
+			return retval;
+		});
 	}
 
 	/* (non-Javadoc)
@@ -384,11 +855,9 @@ public class SQLiteDriver implements Driver {
 	 */
 	@Override
 	public Collection<Subject> getAllSubjects() throws IOException {
-		Set<SubjectQuestionGenerator> generators = DriverActivator.SUBJECT_QUESTION_GENERATOR_TRACKER.getSubjectQuestionGenerators();
-		ArrayList<Subject> retval = new ArrayList<>(generators.size());
-		for(SubjectQuestionGenerator generator:generators) 
-			retval.add(generator.getSubject());
-		return retval;
+		return metrics.measure("getAllSubjects", ()->{
+			return new ArrayList<>(DriverActivator.SUBJECT_QUESTION_GENERATOR_TRACKER.getSubjects());
+		});
 	}
 
 	/* (non-Javadoc)
@@ -396,8 +865,35 @@ public class SQLiteDriver implements Driver {
 	 */
 	@Override
 	public Quiz generateQuiz(QuizDesignID quizDesignID) throws IOException {
-		QuizDesign quizDesign = getQuizDesign(quizDesignID);
-
+		return metrics.measure("generateQuiz", ()->{
+			QuizDesign quizDesign = getQuizDesign(quizDesignID);
+			StagedQuiz stagedQuiz = quizPool.take(quizDesignID, quizDesign.getUserID());
+			if(stagedQuiz==null)
+				stagedQuiz = stageQuiz(quizDesign);
+		
+			QuizID quizID=new QuizID(shards.createID(quizDesignID));
+			Quiz quiz = new Quiz(quizID, stagedQuiz.getUserID(), ZonedDateTime.now());
+			List<Subject> stagedSubjects = stagedQuiz.getSubjects();
+			List<Question> stagedQuestions = stagedQuiz.getQuestions();
+			ArrayList<Question> questions = new ArrayList<>(stagedQuestions.size());
+			for(int i=0;i<stagedQuestions.size();i++)
+				questions.add(new Question(new QuestionID(shards.createID(quizID)), quizID, stagedSubjects.get(i), stagedQuestions.get(i),ZonedDateTime.now()));
+		
+			// Save generated quiz
+			saveQuiz(quiz, questions);
+		
+			return quiz;
+		});
+	}
+	
+	/**
+	 * Runs the subject question generators for a quiz design.
+	 * 
+	 * @param quizDesign
+	 * @return The generated questions, shuffled.
+	 * @throws IOException
+	 */
+	private StagedQuiz stageQuiz(QuizDesign quizDesign) throws IOException {
 		// Check inputs
 		if((quizDesign.getMinQuestions()<=0)||(quizDesign.getMinQuestions()>quizDesign.getMaxQuestions()))
 			throw new IllegalArgumentException("Quiz design has invalid min/max question count specified.");
@@ -435,81 +931,158 @@ public class SQLiteDriver implements Driver {
 			}
 		}
 		
-		QuizID quizID=new QuizID(UUID.randomUUID().toString());
-		Quiz quiz = new Quiz(quizID, quizDesign.getUserID(), ZonedDateTime.now());
-		
-		ArrayList<Question> questions = new ArrayList<>(questionCount);
+		// Resolve every generator before starting any of them, so an unknown subject fails fast.
+		ArrayList<Integer> subjectIndexes = new ArrayList<>(subjectArray.length);
+		ArrayList<Callable<Collection<Question>>> generationTasks = new ArrayList<>(subjectArray.length);
 		for(int i=0;i<subjectArray.length;i++){
 			if(subjectQuestionCounts[i]<=0)
 				continue;
 			SubjectQuestionGenerator questionGenerator = DriverActivator.SUBJECT_QUESTION_GENERATOR_TRACKER.getSubjectQuestionGenerator(subjectArray[i].getSubject());
 			if(questionGenerator == null)
 				throw new RuntimeException("Unknown subject: "+subjectArray[i].toString());
-			Collection<Question> generatedQuestions = questionGenerator.generateQuestions(this, quizDesign.getUserID(), subjectQuestionCounts[i]);
-			if(generatedQuestions.size()!=subjectQuestionCounts[i])
-				throw new RuntimeException("Question generator did not return the specified number of questions: Subject="+subjectArray[i]+", Expected="+subjectQuestionCounts[i]+", Returned="+generatedQuestions.size());
-			for(Question generatedQuestion:generatedQuestions)
-				questions.add(new Question(new QuestionID(UUID.randomUUID().toString()), quizID, subjectArray[i].getSubject(), generatedQuestion,ZonedDateTime.now()));
+			subjectIndexes.add(i);
+			generationTasks.add(createGenerationTask(questionGenerator, subjectArray[i], quizDesign.getUserID(), subjectQuestionCounts[i]));
 		}
+		List<Collection<Question>> generatedQuestionSets = generateQuestions(generationTasks);
 		
-		Collections.shuffle(questions);
-		
-		// Save generated quiz
-		saveQuiz(quiz);
-		saveQuizQuestions(questions);
+		ArrayList<Subject> generatedSubjects = new ArrayList<>(questionCount);
+		ArrayList<Question> generatedQuestions = new ArrayList<>(questionCount);
+		for(int i=0;i<generatedQuestionSets.size();i++){
+			Subject subject = subjectArray[subjectIndexes.get(i)].getSubject();
+			for(Question generatedQuestion:generatedQuestionSets.get(i)){
+				generatedSubjects.add(subject);
+				generatedQuestions.add(generatedQuestion);
+			}
+		}
 		
-		return quiz;
+		// Shuffle the subjects and questions together.
+		ArrayList<Integer> order = new ArrayList<>(generatedQuestions.size());
+		for(int i=0;i<generatedQuestions.size();i++)
+			order.add(i);
+		Collections.shuffle(order);
+		ArrayList<Subject> subjectsRetval = new ArrayList<>(order.size());
+		ArrayList<Question> questionsRetval = new ArrayList<>(order.size());
+		for(Integer i:order){
+			subjectsRetval.add(generatedSubjects.get(i));
+			questionsRetval.add(generatedQuestions.get(i));
+		}
+		return new StagedQuiz(quizDesign.getUserID(), subjectsRetval, questionsRetval);
 	}
 	
-	private static void saveQuiz(Quiz quiz) throws IOException{
-		String sql = "INSERT INTO quizes " +
-                "(id, user_id, time_added) " +
-				"VALUES (?,?,?)";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				statement.setString(1, quiz.getQuizID().toString());
-				statement.setString(2, quiz.getUserID().toString());
-				statement.setString(3, quiz.getTimeAdded().format(DateTimeFormatter.ISO_DATE_TIME));
-				statement.executeUpdate();
-			}
-			catch(SQLException t){
-				throw new IOException(t);
+	/**
+	 * 
+	 * @param questionGenerator
+	 * @param quizDesignSubject
+	 * @param userID
+	 * @param count
+	 * @return A task that generates and validates the questions for one subject, recording how long the generator took.
+	 */
+	private Callable<Collection<Question>> createGenerationTask(SubjectQuestionGenerator questionGenerator, QuizDesignSubject quizDesignSubject, UserID userID, int count){
+		return ()->{
+			long start = System.nanoTime();
+			Collection<Question> generatedQuestions = questionGenerator.generateQuestions(this, userID, count);
+			generatorTimings.computeIfAbsent(quizDesignSubject.getSubject(), (subject)->new TimingStatistics()).record(System.nanoTime()-start);
+			if(generatedQuestions.size()!=count)
+				throw new RuntimeException("Question generator did not return the specified number of questions: Subject="+quizDesignSubject+", Expected="+count+", Returned="+generatedQuestions.size());
+			return generatedQuestions;
+		};
+	}
+	
+	/**
+	 * Runs the question generation tasks, concurrently if a generator executor is configured.
+	 * 
+	 * @param generationTasks
+	 * @return The results of the tasks, in the same order as the tasks.
+	 * @throws IOException If a generator throws an IOException, or generation is interrupted.
+	 */
+	private List<Collection<Question>> generateQuestions(List<Callable<Collection<Question>>> generationTasks) throws IOException{
+		ArrayList<Collection<Question>> retval = new ArrayList<>(generationTasks.size());
+		try{
+			if((generatorExecutor==null)||(generationTasks.size()==1)){
+				for(Callable<Collection<Question>> task:generationTasks)
+					retval.add(task.call());
+				return retval;
 			}
+			List<Future<Collection<Question>>> futures = generatorExecutor.invokeAll(generationTasks);
+			for(Future<Collection<Question>> future:futures)
+				retval.add(future.get());
+			return retval;
+		}
+		catch(ExecutionException t){
+			Throwable cause = t.getCause();
+			if(cause instanceof IOException)
+				throw (IOException)cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if(cause instanceof Error)
+				throw (Error)cause;
+			throw new IOException(cause);
+		}
+		catch(InterruptedException t){
+			Thread.currentThread().interrupt();
+			throw new IOException(t);
+		}
+		catch(IOException|RuntimeException t){
+			throw t;
+		}
+		catch(Exception t){
+			throw new IOException(t);
 		}
 	}
 	
-	private static void saveQuizQuestions(Collection<Question> questions) throws IOException{
-		int i=0;
-		for(Question question:questions){
-			saveQuizQuestion(question,i);
-			i++;
+	/**
+	 * Saves a quiz and its questions in a single transaction.
+	 * 
+	 * @param quiz
+	 * @param questions The questions of the quiz, in order.
+	 * @throws IOException
+	 */
+	private void saveQuiz(Quiz quiz, Collection<Question> questions) throws IOException{
+		try (PooledConnection connection = shards.getShard(quiz.getQuizID()).acquireWriter()) {
+			connection.beginTransaction();
+			insertQuiz(connection, quiz);
+			insertQuizQuestions(connection, questions);
+			connection.commit();
+		}
+		catch(SQLException t){
+			throw new IOException(t);
 		}
 	}
 	
-	private static void saveQuizQuestion(Question question, int order) throws IOException{
+	private static void insertQuiz(PooledConnection connection, Quiz quiz) throws SQLException{
+		String sql = "INSERT INTO quizes " +
+                "(id, user_id, time_added, time_added_zone) " +
+				"VALUES (?,?,?,?)";
+		PreparedStatement statement = connection.prepareStatement(sql);
+		Keys.bind(statement, 1, quiz.getQuizID());
+		Keys.bind(statement, 2, quiz.getUserID());
+		Timestamps.bind(statement, 3, quiz.getTimeAdded());
+		statement.executeUpdate();
+	}
+	
+	private static void insertQuizQuestions(PooledConnection connection, Collection<Question> questions) throws SQLException{
 		String sql = "INSERT INTO questions " +
-                "(id, quiz_id, q_order, subject, prompt, prompt_format, answer, answer_format, answer_value, dimensions, points, time_added) " +
-				"VALUES (?,?,?,?,?,?,?,?,?,?,?,?)";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				statement.setString(1, question.getQuestionID().toString());
-				statement.setString(2, question.getQuizID().toString());
-				statement.setInt(3, order);
-				statement.setString(4, question.getSubject().toString());
-				statement.setString(5, question.getPrompt());
-				statement.setString(6, question.getPromptType());
-				statement.setString(7, question.getAnswerPrompt());
-				statement.setString(8, question.getAnswerPromptType());
-				statement.setString(9, question.getAnswerValue());
-				statement.setString(10, JSONEncoder.encode(question.getQuestionDimensions()));
-				statement.setInt(11, question.getPoints());
-				statement.setString(12, question.getTimeAdded().format(DateTimeFormatter.ISO_DATE_TIME));
-				statement.executeUpdate();
-			}
-			catch(SQLException t){
-				throw new IOException(t);
-			}
+                "(id, quiz_id, q_order, subject, prompt, prompt_format, answer, answer_format, answer_value, dimensions, points, time_added, time_added_zone) " +
+				"VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?)";
+		PreparedStatement statement = connection.prepareStatement(sql);
+		int order=0;
+		for(Question question:questions){
+			Keys.bind(statement, 1, question.getQuestionID());
+			Keys.bind(statement, 2, question.getQuizID());
+			statement.setInt(3, order);
+			statement.setString(4, question.getSubject().toString());
+			statement.setString(5, question.getPrompt());
+			statement.setString(6, question.getPromptType());
+			statement.setString(7, question.getAnswerPrompt());
+			statement.setString(8, question.getAnswerPromptType());
+			statement.setString(9, question.getAnswerValue());
+			statement.setBytes(10, DimensionsCodec.encode(question.getQuestionDimensions()));
+			statement.setInt(11, question.getPoints());
+			Timestamps.bind(statement, 12, question.getTimeAdded());
+			statement.addBatch();
+			order++;
 		}
+		statement.executeBatch();
 	}
 
 	/* (non-Javadoc)
@@ -517,21 +1090,23 @@ public class SQLiteDriver implements Driver {
 	 */
 	@Override
 	public Quiz getQuiz(QuizID quizID) throws IOException {
-		String sql = "SELECT id, user_id, time_added " +
-				"FROM quizes " +
-				"WHERE id = ?";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				statement.setString(1, quizID.toString());
-				ResultSet resultSet = statement.executeQuery();
-				if(!resultSet.next())
-					return null;
-				return getQuizFromResultSetRow(resultSet);
+		return metrics.measure("getQuiz", ()->{
+			String sql = "SELECT id, user_id, time_added, time_added_zone " +
+					"FROM quizes " +
+					"WHERE id = ?";
+			try (PooledConnection connection = shards.getShard(quizID).acquireReader()) {
+				PreparedStatement statement = connection.prepareStatement(sql);
+				Keys.bind(statement, 1, quizID);
+				try (ResultSet resultSet = statement.executeQuery()) {
+					if(!resultSet.next())
+						return null;
+					return getQuizFromResultSetRow(resultSet);
+				}
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
-		}
+		});
 	}
 
 	/* (non-Javadoc)
@@ -539,22 +1114,24 @@ public class SQLiteDriver implements Driver {
 	 */
 	@Override
 	public Collection<Quiz> getUserQuizes(UserID userID) throws IOException {
-		String sql = "SELECT id, user_id, time_added " +
-				"FROM quizes " +
-				"WHERE user_id = ?";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				statement.setString(1, userID.toString());
-				ResultSet resultSet = statement.executeQuery();
-				LinkedList<Quiz> retval = new LinkedList<>();
-				while(resultSet.next())
-					retval.add(getQuizFromResultSetRow(resultSet));
-				return retval;
+		return metrics.measure("getUserQuizes", ()->{
+			String sql = "SELECT id, user_id, time_added, time_added_zone " +
+					"FROM quizes " +
+					"WHERE user_id = ?";
+			try (PooledConnection connection = shards.getShard(userID).acquireReader()) {
+				PreparedStatement statement = connection.prepareStatement(sql);
+				Keys.bind(statement, 1, userID);
+				try (ResultSet resultSet = statement.executeQuery()) {
+					LinkedList<Quiz> retval = new LinkedList<>();
+					while(resultSet.next())
+						retval.add(getQuizFromResultSetRow(resultSet));
+					return retval;
+				}
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
-		}
+		});
 	}
 
 	/* (non-Javadoc)
@@ -562,43 +1139,56 @@ public class SQLiteDriver implements Driver {
 	 */
 	@Override
 	public void deleteQuiz(QuizID quizID) throws IOException {
-		String sql = "DELETE FROM quizes " +
-				"WHERE id = ?";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				statement.setString(1, quizID.toString());
-				statement.executeUpdate();
+		metrics.measure("deleteQuiz", ()->{
+			flushAnswers(quizID);
+			try (PooledConnection connection = shards.getShard(quizID).acquireWriter()) {
+				connection.beginTransaction();
+				deleteQuizes(connection, Collections.singletonList(quizID.toString()));
+				connection.commit();
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
-		}
-		Collection<Question> questions = getQuizQuestions(quizID);
-		// Delete answers.
-		for(Question question:questions){
-			sql = "DELETE FROM answers " +
-					"WHERE question_id = ?";
-			synchronized(DB_LOCK){
-				try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-					statement.setString(1, question.getQuestionID().toString());
-					statement.executeUpdate();
-				}
-				catch(SQLException t){
-					throw new IOException(t);
-				}
-			}
-		}
-		// Delete questions.
-		sql = "DELETE FROM questions " +
-				"WHERE quiz_id = ?";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				statement.setString(1, quizID.toString());
-				statement.executeUpdate();
-			}
-			catch(SQLException t){
-				throw new IOException(t);
+		});
+	}
+	
+	/**
+	 * Deletes quizes along with their questions and answers.
+	 * This should be called within a transaction.
+	 * 
+	 * @param connection A writer connection.
+	 * @param quizIDs
+	 * @throws SQLException
+	 */
+	private static void deleteQuizes(PooledConnection connection, Collection<String> quizIDs) throws SQLException{
+		DimensionStatisticsTable.removeQuizes(connection::prepareStatement, quizIDs);
+		deleteQuizRows(connection, quizIDs);
+	}
+	
+	/**
+	 * Deletes quizes along with their questions and answers, leaving the dimension statistics as they are.
+	 * This should be called within a transaction.
+	 * 
+	 * @param connection A writer connection.
+	 * @param quizIDs
+	 * @throws SQLException
+	 */
+	static void deleteQuizRows(PooledConnection connection, Collection<String> quizIDs) throws SQLException{
+		String[] sqls = {
+				"DELETE FROM answers " +
+				"WHERE question_id IN (SELECT id FROM questions WHERE quiz_id = ?)",
+				"DELETE FROM questions " +
+				"WHERE quiz_id = ?",
+				"DELETE FROM quizes " +
+				"WHERE id = ?"
+		};
+		for(String sql:sqls){
+			PreparedStatement statement = connection.prepareStatement(sql);
+			for(String quizID:quizIDs){
+				Keys.bind(statement, 1, quizID);
+				statement.addBatch();
 			}
+			statement.executeBatch();
 		}
 	}
 	
@@ -607,21 +1197,23 @@ public class SQLiteDriver implements Driver {
 	 */
 	@Override
 	public Question getQuizQuestion(QuestionID questionID) throws IOException {
-		String sql = "SELECT id, quiz_id, q_order, subject, prompt, prompt_format, answer, answer_format, answer_value, dimensions, points, time_added " +
-				"FROM questions " +
-				"WHERE id = ?";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				statement.setString(1, questionID.toString());
-				ResultSet resultSet = statement.executeQuery();
-				if(!resultSet.next())
-					return null;
-				return getQuestionFromResultSetRow(resultSet);
+		return metrics.measure("getQuizQuestion", ()->{
+			String sql = "SELECT id, quiz_id, q_order, subject, prompt, prompt_format, answer, answer_format, answer_value, dimensions, points, time_added, time_added_zone " +
+					"FROM questions " +
+					"WHERE id = ?";
+			try (PooledConnection connection = shards.getShard(questionID).acquireReader()) {
+				PreparedStatement statement = connection.prepareStatement(sql);
+				Keys.bind(statement, 1, questionID);
+				try (ResultSet resultSet = statement.executeQuery()) {
+					if(!resultSet.next())
+						return null;
+					return getQuestionFromResultSetRow(resultSet);
+				}
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
-		}
+		});
 	}
 
 	/* (non-Javadoc)
@@ -629,22 +1221,24 @@ public class SQLiteDriver implements Driver {
 	 */
 	@Override
 	public Collection<Question> getQuizQuestions(QuizID quizID) throws IOException {
-		String sql = "SELECT id, quiz_id, q_order, subject, prompt, prompt_format, answer, answer_format, answer_value, dimensions, points, time_added " +
-				"FROM questions " +
-				"WHERE quiz_id = ?";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				statement.setString(1, quizID.toString());
-				ResultSet resultSet = statement.executeQuery();
-				LinkedList<Question> retval = new LinkedList<>();
-				while(resultSet.next())
-					retval.add(getQuestionFromResultSetRow(resultSet));
-				return retval;
+		return metrics.measure("getQuizQuestions", ()->{
+			String sql = "SELECT id, quiz_id, q_order, subject, prompt, prompt_format, answer, answer_format, answer_value, dimensions, points, time_added, time_added_zone " +
+					"FROM questions " +
+					"WHERE quiz_id = ?";
+			try (PooledConnection connection = shards.getShard(quizID).acquireReader()) {
+				PreparedStatement statement = connection.prepareStatement(sql);
+				Keys.bind(statement, 1, quizID);
+				try (ResultSet resultSet = statement.executeQuery()) {
+					LinkedList<Question> retval = new LinkedList<>();
+					while(resultSet.next())
+						retval.add(getQuestionFromResultSetRow(resultSet));
+					return retval;
+				}
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
-		}
+		});
 	}
 
 	/* (non-Javadoc)
@@ -652,23 +1246,87 @@ public class SQLiteDriver implements Driver {
 	 */
 	@Override
 	public Collection<Question> getUserSubjectQuestions(UserID userID, Subject subject) throws IOException {
-		String sql = "SELECT qs.id, qs.quiz_id, qs.q_order, qs.subject, qs.prompt, qs.prompt_format, qs.answer, qs.answer_format, qs.answer_value, qs.dimensions, qs.points, qs.time_added " +
-				"FROM questions qs, quizes qz" +
-				"WHERE qz.user_id = ? AND qs.subject = ?";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				statement.setString(1, userID.toString());
-				statement.setString(2, subject.toString());
-				ResultSet resultSet = statement.executeQuery();
-				LinkedList<Question> retval = new LinkedList<>();
-				while(resultSet.next())
-					retval.add(getQuestionFromResultSetRow(resultSet));
-				return retval;
+		return metrics.measure("getUserSubjectQuestions", ()->{
+			try (PooledConnection connection = shards.getShard(userID).acquireReader()) {
+				PreparedStatement statement = prepareUserSubjectQuestionsStatement(connection, userID, subject);
+				try (ResultSet resultSet = statement.executeQuery()) {
+					ArrayList<Question> retval = new ArrayList<>();
+					while(resultSet.next())
+						retval.add(getQuestionFromResultSetRow(resultSet));
+					return retval;
+				}
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
-		}
+		});
+	}
+
+	/**
+	 * Provides the same questions as getUserSubjectQuestions, but reads them from the database lazily
+	 * as the stream is consumed, so that a long history need not be held in memory all at once.
+	 * 
+	 * The stream holds a reader connection until it is closed, and so must be closed by the caller,
+	 * ideally with try-with-resources. Since reader connections are limited, a thread should not hold
+	 * more than one such stream open at a time.
+	 * Database errors encountered while the stream is consumed are thrown as UncheckedIOException.
+	 * 
+	 * @param userID
+	 * @param subject
+	 * @return A stream of all the questions of the given subject that have been asked of the given user.
+	 * @throws IOException
+	 */
+	public Stream<Question> streamUserSubjectQuestions(UserID userID, Subject subject) throws IOException {
+		return metrics.measure("streamUserSubjectQuestions", ()->{
+			PooledConnection connection = null;
+			try {
+				connection = shards.getShard(userID).acquireReader();
+				PreparedStatement statement = prepareUserSubjectQuestionsStatement(connection, userID, subject);
+				final ResultSet resultSet = statement.executeQuery();
+				final PooledConnection streamConnection = connection;
+				Spliterator<Question> spliterator = new Spliterators.AbstractSpliterator<Question>(Long.MAX_VALUE, Spliterator.ORDERED|Spliterator.NONNULL) {
+					@Override
+					public boolean tryAdvance(Consumer<? super Question> action) {
+						try{
+							if(!resultSet.next())
+								return false;
+							action.accept(getQuestionFromResultSetRow(resultSet));
+							return true;
+						}
+						catch(SQLException t){
+							throw new UncheckedIOException(new IOException(t));
+						}
+					}
+				};
+				return StreamSupport.stream(spliterator, false).onClose(()->{
+					try{
+						resultSet.close();
+					}
+					catch(SQLException t){
+						t.printStackTrace();
+					}
+					finally{
+						streamConnection.close();
+					}
+				});
+			}
+			catch(SQLException t){
+				if(connection!=null)
+					connection.close();
+				throw new IOException(t);
+			}
+		});
+	}
+
+	private static PreparedStatement prepareUserSubjectQuestionsStatement(PooledConnection connection, UserID userID, Subject subject) throws SQLException{
+		String sql = "SELECT qs.id, qs.quiz_id, qs.q_order, qs.subject, qs.prompt, qs.prompt_format, qs.answer, qs.answer_format, qs.answer_value, qs.dimensions, qs.points, qs.time_added, qs.time_added_zone " +
+				"FROM quizes qz " +
+				"JOIN questions qs ON qs.quiz_id = qz.id " +
+				"WHERE qz.user_id = ? AND qs.subject = ?";
+		PreparedStatement statement = connection.prepareStatement(sql);
+		Keys.bind(statement, 1, userID);
+		statement.setString(2, subject.toString());
+		return statement;
 	}
 
 	/* (non-Javadoc)
@@ -677,53 +1335,196 @@ public class SQLiteDriver implements Driver {
 	@Override
 	public AnswerID saveAnswer(Question question, String answer, ZonedDateTime timeAsked)
 			throws IOException {
-		SubjectQuestionGenerator questionGenerator = DriverActivator.SUBJECT_QUESTION_GENERATOR_TRACKER.getSubjectQuestionGenerator(question.getSubject());
-		if(questionGenerator==null)
-			throw new RuntimeException("Question generator for question not found.");
-		int points = questionGenerator.getAnswerScore(question, answer);
-		ZonedDateTime timeAnswered = ZonedDateTime.now();
+		return metrics.measure("saveAnswer", ()->{
+			SubjectQuestionGenerator questionGenerator = DriverActivator.SUBJECT_QUESTION_GENERATOR_TRACKER.getSubjectQuestionGenerator(question.getSubject());
+			if(questionGenerator==null)
+				throw new RuntimeException("Question generator for question not found.");
+			int points = questionGenerator.getAnswerScore(question, answer);
+			ZonedDateTime timeAnswered = ZonedDateTime.now();
+			AnswerID answerID = new AnswerID(shards.createID(question.getQuestionID()));
+			Answer savedAnswer = new Answer(answerID, question.getQuestionID(), answer, points, timeAsked, timeAnswered);
+			UserID userID = (answerWriter==null)?null:getQuizUserID(question.getQuizID());
+			// An answer to a quiz which cannot be found is written immediately, so that the failure is reported to the caller.
+			if(userID!=null)
+				answerWriter.enqueue(savedAnswer, question.getQuizID(), userID);
+			else
+				writeAnswers(Collections.singletonList(savedAnswer));
+			return answerID;
+		});
+	}
+	
+	/**
+	 * @param quizID
+	 * @return The ID of the user the quiz belongs to, or null if there is no such quiz.
+	 * @throws IOException
+	 */
+	private UserID getQuizUserID(QuizID quizID) throws IOException{
+		try (PooledConnection connection = shards.getShard(quizID).acquireReader()) {
+			PreparedStatement statement = connection.prepareStatement("SELECT user_id FROM quizes WHERE id = ?");
+			Keys.bind(statement, 1, quizID);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				if(!resultSet.next())
+					return null;
+				return new UserID(Keys.read(resultSet, 1));
+			}
+		}
+		catch(SQLException t){
+			throw new IOException(t);
+		}
+	}
 
-		String sql = "INSERT INTO answers " +
-                "(id, question_id, answer_value, points, time_asked, time_answered) " +
-				"VALUES (?,?,?,?,?,?)";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				String id = UUID.randomUUID().toString();
-				statement.setString(1, id);
-				statement.setString(2, question.getQuestionID().toString());
-				statement.setString(3, answer);
-				statement.setInt(4, points);
-				statement.setString(5, timeAsked.format(DateTimeFormatter.ISO_DATE_TIME));
-				statement.setString(6, timeAnswered.format(DateTimeFormatter.ISO_DATE_TIME));
-				statement.executeUpdate();
-				return new AnswerID(id);
+	/**
+	 * Scores and saves many answers in a single transaction. Each subject's question generator is looked up once,
+	 * and each generator scores all of the answers for its subject together.
+	 * Answers saved this way are written immediately, even if saveAnswer is queueing answers.
+	 * 
+	 * @param submissions
+	 * @return The IDs of the saved answers, in the same order as submissions.
+	 * @throws IOException
+	 */
+	public List<AnswerID> saveAnswers(List<AnswerSubmission> submissions) throws IOException{
+		return metrics.measure("saveAnswers", ()->{
+			// Group the submissions by subject, remembering their positions.
+			HashMap<Subject,List<Integer>> subjectSubmissions = new HashMap<>();
+			for(int i=0;i<submissions.size();i++)
+				subjectSubmissions.computeIfAbsent(submissions.get(i).getQuestion().getSubject(), (subject)->new ArrayList<>()).add(i);
+		
+			ZonedDateTime timeAnswered = ZonedDateTime.now();
+			Answer[] answers = new Answer[submissions.size()];
+			for(Map.Entry<Subject,List<Integer>> entry:subjectSubmissions.entrySet()){
+				SubjectQuestionGenerator questionGenerator = DriverActivator.SUBJECT_QUESTION_GENERATOR_TRACKER.getSubjectQuestionGenerator(entry.getKey());
+				if(questionGenerator==null)
+					throw new RuntimeException("Question generator for question not found.");
+				for(Integer i:entry.getValue()){
+					AnswerSubmission submission = submissions.get(i);
+					int points = questionGenerator.getAnswerScore(submission.getQuestion(), submission.getAnswer());
+					answers[i] = new Answer(new AnswerID(shards.createID(submission.getQuestion().getQuestionID())), submission.getQuestion().getQuestionID(), submission.getAnswer(), points, submission.getTimeAsked(), timeAnswered);
+				}
+			}
+			List<Answer> answerList = Arrays.asList(answers);
+			writeAnswers(answerList);
+		
+			ArrayList<AnswerID> retval = new ArrayList<>(answers.length);
+			for(Answer answer:answerList)
+				retval.add(answer.getAnswerID());
+			return retval;
+		});
+	}
+	
+	/**
+	 * Looks up the running totals of a user's answers on a subject, for each question dimension.
+	 * This reads a single row per dimension, regardless of the size of the user's history.
+	 * 
+	 * @param userID
+	 * @param subject
+	 * @return The statistics for each dimension of the subject that the user has answered questions on.
+	 * @throws IOException
+	 */
+	public Collection<DimensionStatistics> getDimensionStatistics(UserID userID, Subject subject) throws IOException{
+		return metrics.measure("getDimensionStatistics", ()->{
+			flushAnswers(userID);
+			try (PooledConnection connection = shards.getShard(userID).acquireReader()) {
+				return DimensionStatisticsTable.read(connection::prepareStatement, userID, subject);
+			}
+			catch(SQLException t){
+				throw new IOException(t);
+			}
+		});
+	}
+	
+	/**
+	 * 
+	 * @param userID
+	 * @param subject
+	 * @param dimension
+	 * @return The running totals of the user's answers to questions on the subject measuring the dimension,
+	 *         or null if the user has not answered any.
+	 * @throws IOException
+	 */
+	public DimensionStatistics getDimensionStatistics(UserID userID, Subject subject, String dimension) throws IOException{
+		return metrics.measure("getDimensionStatistics", ()->{
+			flushAnswers(userID);
+			try (PooledConnection connection = shards.getShard(userID).acquireReader()) {
+				return DimensionStatisticsTable.read(connection::prepareStatement, userID, subject, dimension);
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
+		});
+	}
+	
+	/**
+	 * Saves answers in a single transaction for each shard they belong to.
+	 * 
+	 * @param answers
+	 * @throws IOException
+	 */
+	private void writeAnswers(List<Answer> answers) throws IOException{
+		if(answers.isEmpty())
+			return;
+		if(!shards.isSharded()){
+			writeAnswers(shards.getCatalog(), answers);
+			return;
+		}
+		LinkedHashMap<ConnectionPool,List<Answer>> shardAnswers = new LinkedHashMap<>();
+		for(Answer answer:answers)
+			shardAnswers.computeIfAbsent(shards.getShard(answer.getAnswerID()), (shard)->new ArrayList<>()).add(answer);
+		for(Map.Entry<ConnectionPool,List<Answer>> entry:shardAnswers.entrySet())
+			writeAnswers(entry.getKey(), entry.getValue());
+	}
+	
+	private static void writeAnswers(ConnectionPool shard, List<Answer> answers) throws IOException{
+		try (PooledConnection connection = shard.acquireWriter()) {
+			connection.beginTransaction();
+			insertAnswers(connection, answers);
+			DimensionStatisticsTable.addAnswers(connection::prepareStatement, answers);
+			connection.commit();
+		}
+		catch(SQLException t){
+			throw new IOException(t);
 		}
 	}
+	
+	private static void insertAnswers(PooledConnection connection, Collection<Answer> answers) throws SQLException{
+		String sql = "INSERT INTO answers " +
+                "(id, question_id, answer_value, points, time_asked, time_asked_zone, time_answered, time_answered_zone) " +
+				"VALUES (?,?,?,?,?,?,?,?)";
+		PreparedStatement statement = connection.prepareStatement(sql);
+		for(Answer answer:answers){
+			Keys.bind(statement, 1, answer.getAnswerID());
+			Keys.bind(statement, 2, answer.getQuestionID());
+			statement.setString(3, answer.getAnswer());
+			statement.setInt(4, answer.getPoints());
+			Timestamps.bind(statement, 5, answer.getTimeAsked());
+			Timestamps.bind(statement, 7, answer.getTimeAnswered());
+			statement.addBatch();
+		}
+		statement.executeBatch();
+	}
 
 	/* (non-Javadoc)
 	 * @see com.shtick.apps.sh.core.Driver#getAnswer(com.shtick.apps.sh.core.AnswerID)
 	 */
 	@Override
 	public Answer getAnswer(AnswerID answerID) throws IOException {
-		String sql = "SELECT id, question_id, answer_value, points, time_asked, time_answered " +
-				"FROM answers " +
-				"WHERE id = ?";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				statement.setString(1, answerID.toString());
-				ResultSet resultSet = statement.executeQuery();
-				if(!resultSet.next())
-					return null;
-				return getAnswerFromResultSetRow(resultSet);
+		return metrics.measure("getAnswer", ()->{
+			flushAnswers(answerID);
+			String sql = "SELECT id, question_id, answer_value, points, time_asked, time_asked_zone, time_answered, time_answered_zone " +
+					"FROM answers " +
+					"WHERE id = ?";
+			try (PooledConnection connection = shards.getShard(answerID).acquireReader()) {
+				PreparedStatement statement = connection.prepareStatement(sql);
+				Keys.bind(statement, 1, answerID);
+				try (ResultSet resultSet = statement.executeQuery()) {
+					if(!resultSet.next())
+						return null;
+					return getAnswerFromResultSetRow(resultSet);
+				}
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
-		}
+		});
 	}
 
 	/* (non-Javadoc)
@@ -731,22 +1532,25 @@ public class SQLiteDriver implements Driver {
 	 */
 	@Override
 	public Collection<Answer> getQuestionAnswers(QuestionID questionID) throws IOException {
-		String sql = "SELECT id, question_id, answer_value, points, time_asked, time_answered " +
-				"FROM answers " +
-				"WHERE question_id = ?";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				statement.setString(1, questionID.toString());
-				ResultSet resultSet = statement.executeQuery();
-				LinkedList<Answer> retval = new LinkedList<>();
-				while(resultSet.next())
-					retval.add(getAnswerFromResultSetRow(resultSet));
-				return retval;
+		return metrics.measure("getQuestionAnswers", ()->{
+			flushAnswers(questionID);
+			String sql = "SELECT id, question_id, answer_value, points, time_asked, time_asked_zone, time_answered, time_answered_zone " +
+					"FROM answers " +
+					"WHERE question_id = ?";
+			try (PooledConnection connection = shards.getShard(questionID).acquireReader()) {
+				PreparedStatement statement = connection.prepareStatement(sql);
+				Keys.bind(statement, 1, questionID);
+				try (ResultSet resultSet = statement.executeQuery()) {
+					LinkedList<Answer> retval = new LinkedList<>();
+					while(resultSet.next())
+						retval.add(getAnswerFromResultSetRow(resultSet));
+					return retval;
+				}
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
-		}
+		});
 	}
 
 	/* (non-Javadoc)
@@ -754,80 +1558,109 @@ public class SQLiteDriver implements Driver {
 	 */
 	@Override
 	public Answer getLatestAnswer(QuestionID questionID) throws IOException {
-		String sql = "SELECT id, question_id, answer_value, points, time_asked, time_answered " +
-				"FROM answers " +
-				"WHERE question_id = ?";
-		synchronized(DB_LOCK){
-			try (Connection connection = DriverManager.getConnection(DB_URL);PreparedStatement statement = connection.prepareStatement(sql);) {
-				statement.setString(1, questionID.toString());
-				ResultSet resultSet = statement.executeQuery();
-				Answer retval = null;
-				Answer answer = null;
-				while(resultSet.next()){
-					answer=getAnswerFromResultSetRow(resultSet);
-					if((retval==null)||(answer.getTimeAnswered().isAfter(retval.getTimeAnswered())))
-						retval = answer;
+		return metrics.measure("getLatestAnswer", ()->{
+			flushAnswers(questionID);
+			String sql = "SELECT id, question_id, answer_value, points, time_asked, time_asked_zone, time_answered, time_answered_zone " +
+					"FROM answers " +
+					"WHERE question_id = ? " +
+					"ORDER BY time_answered DESC " +
+					"LIMIT 1";
+			try (PooledConnection connection = shards.getShard(questionID).acquireReader()) {
+				PreparedStatement statement = connection.prepareStatement(sql);
+				Keys.bind(statement, 1, questionID);
+				try (ResultSet resultSet = statement.executeQuery()) {
+					if(!resultSet.next())
+						return null;
+					return getAnswerFromResultSetRow(resultSet);
 				}
-				return retval;
 			}
 			catch(SQLException t){
 				throw new IOException(t);
 			}
+		});
+	}
+
+	/**
+	 * Reads quiz designs from quiz_designs left joined to quiz_design_subjects, with each design's rows together.
+	 * 
+	 * @param resultSet Rows holding the design's id, user_id, title, min_questions, max_questions, time_added and time_added_zone,
+	 *                  followed by a subject's subject, min_questions and max_questions.
+	 * @return The quiz designs, in the order read.
+	 * @throws SQLException
+	 */
+	private static List<QuizDesign> getQuizDesignsFromResultSet(ResultSet resultSet) throws SQLException{
+		ArrayList<QuizDesign> retval = new ArrayList<>();
+		boolean more = resultSet.next();
+		while(more){
+			String id = Keys.read(resultSet, 1);
+			UserID userID = new UserID(Keys.read(resultSet, 2));
+			String title = resultSet.getString(3);
+			int minQuestions = resultSet.getInt(4);
+			int maxQuestions = resultSet.getInt(5);
+			ZonedDateTime timeAdded = Timestamps.read(resultSet, 6);
+			HashSet<QuizDesignSubject> quizDesignSubjects = new HashSet<>();
+			do{
+				String subject = resultSet.getString(8);
+				if(subject!=null)
+					quizDesignSubjects.add(new QuizDesignSubject(new Subject(subject), resultSet.getInt(9), resultSet.getInt(10)));
+				more = resultSet.next();
+			}while(more&&id.equals(Keys.read(resultSet, 1)));
+			retval.add(new QuizDesign(new QuizDesignID(id), userID, title, quizDesignSubjects, minQuestions, maxQuestions, timeAdded));
 		}
+		return retval;
 	}
 
-	private static QuizDesign getQuizDesignFromResultSetRow(ResultSet resultSet) throws SQLException{
-		Object decodedJSON = JSONDecoder.decode(resultSet.getString(4), null);
-		if(!(decodedJSON instanceof List))
-			throw new IllegalArgumentException("Decoded JSON was not a list.");
-		List<Object> dbDesignSubjects = (List<Object>)decodedJSON;
-		HashSet<QuizDesignSubject> quizDesignSubjects = new HashSet<>(dbDesignSubjects.size());
-		Map<String,Object> mapDesignSubject;
-		for(Object dbDesignSubject:dbDesignSubjects) {
-			if(!(dbDesignSubject instanceof Map))
-				throw new IllegalArgumentException("Decoded design subject was not a Map.");
-			quizDesignSubjects.add(Marshal.unmarshalQuizDesignSubject((Map<String,Object>)dbDesignSubject));
+	/**
+	 * Inserts the subjects of a quiz design. This should be called within a transaction.
+	 * 
+	 * @param connection A writer connection.
+	 * @param designID
+	 * @param subjects
+	 * @throws SQLException
+	 */
+	private static void insertQuizDesignSubjects(PooledConnection connection, String designID, Collection<QuizDesignSubject> subjects) throws SQLException{
+		if(subjects.isEmpty())
+			return;
+		PreparedStatement statement = connection.prepareStatement("INSERT INTO quiz_design_subjects (design_id, subject, min_questions, max_questions) VALUES (?,?,?,?)");
+		for(QuizDesignSubject subject:subjects){
+			Keys.bind(statement, 1, designID);
+			statement.setString(2, subject.getSubject().toString());
+			statement.setInt(3, subject.getMinQuestions());
+			statement.setInt(4, subject.getMaxQuestions());
+			statement.addBatch();
 		}
-		return new QuizDesign(
-				new QuizDesignID(resultSet.getString(1)),
-				new UserID(resultSet.getString(2)),
-				resultSet.getString(3),
-				quizDesignSubjects,
-				resultSet.getInt(5),
-				resultSet.getInt(6),
-				ZonedDateTime.parse(resultSet.getString(7), DateTimeFormatter.ISO_DATE_TIME)
-				);
+		statement.executeBatch();
 	}
 
 	private static User getUserFromResultSetRow(ResultSet resultSet) throws SQLException{
 		return new User(
-				new UserID(resultSet.getString(1)),
+				new UserID(Keys.read(resultSet, 1)),
 				resultSet.getString(2),
-				ZonedDateTime.parse(resultSet.getString(3), DateTimeFormatter.ISO_DATE_TIME)
+				Timestamps.read(resultSet, 3)
 				);
 	}
 
 	private static Quiz getQuizFromResultSetRow(ResultSet resultSet) throws SQLException{
 		return new Quiz(
-				new QuizID(resultSet.getString(1)),
-				new UserID(resultSet.getString(2)),
-				ZonedDateTime.parse(resultSet.getString(3), DateTimeFormatter.ISO_DATE_TIME)
+				new QuizID(Keys.read(resultSet, 1)),
+				new UserID(Keys.read(resultSet, 2)),
+				Timestamps.read(resultSet, 3)
 				);
 	}
 
 	/**
 	 * ResultSet rows are expected to have the following ordered columns:
-	 * id, quiz_id, subject, prompt, prompt_format, answer, answer_format, answer_value, dimensions, points, time_added
+	 * id, quiz_id, q_order, subject, prompt, prompt_format, answer, answer_format, answer_value, dimensions, points, time_added, time_added_zone
 	 * 
 	 * @param resultSet
 	 * @return
 	 * @throws SQLException
 	 */
 	private static Question getQuestionFromResultSetRow(ResultSet resultSet) throws SQLException{
-		Map<String,Float> dimensions = parseJSONMap(resultSet.getString(10));
+		Map<String,Float> dimensions = DimensionsCodec.decode(resultSet.getBytes(10));
 		return new Question(
-				new QuestionID(resultSet.getString(1)),
-				new QuizID(resultSet.getString(2)),
+				new QuestionID(Keys.read(resultSet, 1)),
+				new QuizID(Keys.read(resultSet, 2)),
 				resultSet.getInt(3),
 				new Subject(resultSet.getString(4)),
 				resultSet.getString(5),
@@ -837,13 +1670,13 @@ public class SQLiteDriver implements Driver {
 				resultSet.getString(9),
 				dimensions,
 				resultSet.getInt(11),
-				ZonedDateTime.parse(resultSet.getString(12), DateTimeFormatter.ISO_DATE_TIME)
+				Timestamps.read(resultSet, 12)
 				);
 	}
 
 	/**
 	 * ResultSet rows are expected to have the following ordered columns:
-	 * id, question_id, answer_value, points, time_asked, time_answered
+	 * id, question_id, answer_value, points, time_asked, time_asked_zone, time_answered, time_answered_zone
 	 * 
 	 * @param resultSet
 	 * @return
@@ -851,53 +1684,12 @@ public class SQLiteDriver implements Driver {
 	 */
 	private static Answer getAnswerFromResultSetRow(ResultSet resultSet) throws SQLException{
 		return new Answer(
-				new AnswerID(resultSet.getString(1)),
-				new QuestionID(resultSet.getString(2)),
+				new AnswerID(Keys.read(resultSet, 1)),
+				new QuestionID(Keys.read(resultSet, 2)),
 				resultSet.getString(3),
 				resultSet.getInt(4),
-				ZonedDateTime.parse(resultSet.getString(5), DateTimeFormatter.ISO_DATE_TIME),
-				ZonedDateTime.parse(resultSet.getString(6), DateTimeFormatter.ISO_DATE_TIME)
+				Timestamps.read(resultSet, 5),
+				Timestamps.read(resultSet, 7)
 				);
 	}
-	
-	private static Map<String,Float> parseJSONMap(String jsonMap) throws IllegalArgumentException{
-		TokenTree<JSONToken> tokenTree;
-		jsonMap=jsonMap.trim();
-		if(jsonMap.length()==0)
-			return new HashMap<>();
-		try{
-			tokenTree = jsonTokenizer.tokenize(new StringReader(jsonMap));
-		}
-		catch(IOException t){
-			throw new RuntimeException(t);
-		}
-		
-		Iterator<JSONToken> iter = tokenTree.iterator();
-		if(!iter.hasNext())
-			return null;
-		JSONToken token = iter.next();
-		if(!(token instanceof ObjectToken))
-			throw new IllegalArgumentException("Input was not a valid JSON encoded object.");
-		if(iter.hasNext())
-			throw new IllegalArgumentException("Extra data was found in the input.");
-		if(tokenTree.getAllIssues().size()>0)
-			throw new IllegalArgumentException("Syntax errors in JSON.");
-		
-		// Turn tokens into map.
-		ObjectToken objectToken = (ObjectToken)token;
-		List<ObjectPropertyToken> properties = objectToken.getObjectPropertyTokens();
-		HashMap<String,Float> retval = new HashMap<>(properties.size());
-		String label;
-		JSONToken value;
-		Float numericValue;
-		for(ObjectPropertyToken property:properties){
-			label=property.getLabel().getRepresentedString();
-			value=property.getValue();
-			if(!(value instanceof NumberToken))
-				throw new IllegalArgumentException("Object contains non-numeric properties.");
-			numericValue = Float.valueOf(((NumberToken)value).toString());
-			retval.put(label,numericValue);
-		}
-		return retval;
-	}
 }
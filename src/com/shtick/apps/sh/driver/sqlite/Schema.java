@@ -0,0 +1,684 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.shtick.apps.sh.core.QuizDesignSubject;
+import com.shtick.apps.sh.core.content.Marshal;
+import com.shtick.utils.data.json.JSONDecoder;
+
+/**
+ * Creates and upgrades the database schema.
+ *
+ * The schema version of a database file is tracked with SQLite's user_version header field.
+ * Each entry in MIGRATIONS upgrades the schema by one version, so that a database at version n
+ * is brought up to date by applying MIGRATIONS[n] onward. Migrations must only ever be appended.
+ *
+ * Version 0 is either an empty database or one created before versioning was introduced,
+ * so the first migration must tolerate tables that already exist.
+ *
+ * @author sean.cox
+ *
+ */
+class Schema {
+	private static final Migration[] MIGRATIONS = {
+			Schema::createTables,
+			Schema::createForeignKeyIndexes,
+			Schema::storeTimestampsAsEpochMillis,
+			Schema::indexQuestionsBySubject,
+			Schema::createDimensionStatistics,
+			Schema::indexQuizesByTimeAdded,
+			Schema::storeKeysAsBlobs,
+			Schema::normalizeQuizDesignSubjects,
+			Schema::createSettings,
+	};
+
+	/**
+	 * A single step in the evolution of the schema.
+	 */
+	@FunctionalInterface
+	interface Migration {
+		/**
+		 * Applies the migration. This is called within a transaction, which is rolled back if an exception is thrown.
+		 *
+		 * @param connection
+		 * @throws SQLException
+		 */
+		void apply(Connection connection) throws SQLException;
+	}
+
+	/**
+	 * The running totals of a user's answers on one subject and dimension, as computed by version 5.
+	 */
+	private static class DimensionTotals {
+		/**
+		 * The weight given to the latest answer in the recent score moving average.
+		 */
+		static final double RECENT_SCORE_WEIGHT = 0.2;
+		long attempts = 0;
+		long pointsEarned = 0;
+		long pointsPossible = 0;
+		double weightedPointsEarned = 0;
+		double weightedPointsPossible = 0;
+		Double recentScore = null;
+		long lastAnswered = 0;
+		String lastAnsweredZone = null;
+	}
+
+	/**
+	 * Copies one row of an old table into the insert statement for its replacement.
+	 */
+	@FunctionalInterface
+	private interface RowConverter {
+		/**
+		 * @param from The current row of the old table.
+		 * @param to The insert statement for the new table, to be bound with the converted row.
+		 * @throws SQLException
+		 */
+		void convert(ResultSet from, PreparedStatement to) throws SQLException;
+	}
+
+	/**
+	 * @return The schema version produced by applying all migrations.
+	 */
+	public static int getCurrentVersion(){
+		return MIGRATIONS.length;
+	}
+
+	/**
+	 * Brings the database up to the current schema version.
+	 * Each migration is applied in its own exclusive transaction along with the version update,
+	 * so an interrupted upgrade resumes from the last completed migration.
+	 *
+	 * @param connection A connection in autocommit mode which is not in use by any other thread.
+	 * @throws SQLException If a migration fails, or if the database has a newer schema than this driver supports.
+	 */
+	public static void migrate(Connection connection) throws SQLException{
+		try(Statement statement = connection.createStatement()){
+			while(true){
+				// Take the write lock before checking the version, in case another process is migrating the same file.
+				statement.execute("BEGIN IMMEDIATE");
+				try{
+					int version = getVersion(statement);
+					if(version>MIGRATIONS.length)
+						throw new SQLException("Database schema version "+version+" is newer than the supported version "+MIGRATIONS.length+".");
+					if(version==MIGRATIONS.length){
+						statement.execute("COMMIT");
+						return;
+					}
+					System.out.println("Migrating database schema from version "+version+" to "+(version+1)+".");
+					MIGRATIONS[version].apply(connection);
+					statement.execute("PRAGMA user_version = "+(version+1));
+					statement.execute("COMMIT");
+				}
+				catch(SQLException|RuntimeException t){
+					statement.execute("ROLLBACK");
+					throw t;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks that the database is at the current schema version, without changing it.
+	 *
+	 * @param connection
+	 * @throws SQLException If the database has a different schema version than this driver uses.
+	 */
+	public static void checkVersion(Connection connection) throws SQLException{
+		try(Statement statement = connection.createStatement()){
+			int version = getVersion(statement);
+			if(version!=MIGRATIONS.length)
+				throw new SQLException("Database schema version "+version+" does not match the supported version "+MIGRATIONS.length+".");
+		}
+	}
+
+	private static int getVersion(Statement statement) throws SQLException{
+		try(ResultSet resultSet = statement.executeQuery("PRAGMA user_version")){
+			resultSet.next();
+			return resultSet.getInt(1);
+		}
+	}
+
+	/**
+	 * Version 1: The original tables.
+	 */
+	private static void createTables(Connection connection) throws SQLException{
+		try(Statement statement = connection.createStatement()){
+			statement.executeUpdate("CREATE TABLE IF NOT EXISTS users" +
+	                   "(id TEXT PRIMARY KEY     NOT NULL," +
+	                   " name           TEXT    NOT NULL," +
+	                   " time_added     TEXT    NOT NULL" +
+	                   ")");
+			statement.executeUpdate("CREATE TABLE IF NOT EXISTS quiz_designs" +
+	                   "(id            TEXT PRIMARY KEY NOT NULL," +
+	                   " user_id       TEXT    NOT NULL," +
+	                   " title         TEXT    NOT NULL," +
+	                   " subjects      TEXT   NOT NULL," +
+	                   " min_questions INT   NOT NULL," +
+	                   " max_questions INT   NOT NULL," +
+	                   " time_added    TEXT    NOT NULL" +
+	                   ")");
+			statement.executeUpdate("CREATE TABLE IF NOT EXISTS quizes" +
+	                   "(id            TEXT PRIMARY KEY NOT NULL," +
+	                   " user_id       TEXT    NOT NULL," +
+	                   " time_added    TEXT    NOT NULL" +
+	                   ")");
+			statement.executeUpdate("CREATE TABLE IF NOT EXISTS questions" +
+	                   "(id            TEXT PRIMARY KEY NOT NULL," +
+	                   " quiz_id       TEXT    NOT NULL," +
+	                   " q_order       INT     NOT NULL," +
+	                   " subject       TEXT    NOT NULL," +
+	                   " prompt        TEXT    NOT NULL," +
+	                   " prompt_format TEXT    NOT NULL," +
+	                   " answer        TEXT    NOT NULL," +
+	                   " answer_format TEXT    NOT NULL," +
+	                   " answer_value  TEXT    NOT NULL," +
+	                   " dimensions    TEXT    NOT NULL," +
+	                   " points        INT     NOT NULL," +
+	                   " time_added    TEXT    NOT NULL" +
+	                   ")");
+			statement.executeUpdate("CREATE TABLE IF NOT EXISTS answers" +
+	                   "(id            TEXT PRIMARY KEY NOT NULL," +
+	                   " question_id   TEXT    NOT NULL," +
+	                   " answer_value  TEXT    NOT NULL," +
+	                   " points        INT     NOT NULL," +
+	                   " time_asked    TEXT    NOT NULL," +
+	                   " time_answered TEXT    NOT NULL" +
+	                   ")");
+		}
+	}
+
+	/**
+	 * Version 2: Indexes on the columns used to look up rows by their owner.
+	 */
+	private static void createForeignKeyIndexes(Connection connection) throws SQLException{
+		try(Statement statement = connection.createStatement()){
+			statement.executeUpdate("CREATE INDEX IF NOT EXISTS quiz_designs_user_id ON quiz_designs (user_id)");
+			statement.executeUpdate("CREATE INDEX IF NOT EXISTS quizes_user_id ON quizes (user_id)");
+			statement.executeUpdate("CREATE INDEX IF NOT EXISTS questions_quiz_id ON questions (quiz_id)");
+			statement.executeUpdate("CREATE INDEX IF NOT EXISTS answers_question_id ON answers (question_id)");
+			statement.executeUpdate("ANALYZE");
+		}
+	}
+
+	/**
+	 * Version 3: Timestamps are stored as epoch milliseconds plus a zone ID, rather than ISO text,
+	 * so that they can be indexed and sorted and are cheap to read.
+	 * The answers index now includes time_answered, so that the latest answer to a question is a single index probe.
+	 */
+	private static void storeTimestampsAsEpochMillis(Connection connection) throws SQLException{
+		rebuildTable(connection, "users",
+				"(id TEXT PRIMARY KEY     NOT NULL," +
+				" name            TEXT    NOT NULL," +
+				" time_added      INTEGER NOT NULL," +
+				" time_added_zone TEXT    NOT NULL" +
+				")",
+				"id, name, time_added",
+				"id, name, time_added, time_added_zone",
+				(from,to)->{
+					to.setString(1, from.getString(1));
+					to.setString(2, from.getString(2));
+					Timestamps.bind(to, 3, parseISOTimestamp(from.getString(3)));
+				});
+		rebuildTable(connection, "quiz_designs",
+				"(id              TEXT PRIMARY KEY NOT NULL," +
+				" user_id         TEXT    NOT NULL," +
+				" title           TEXT    NOT NULL," +
+				" subjects        TEXT    NOT NULL," +
+				" min_questions   INT     NOT NULL," +
+				" max_questions   INT     NOT NULL," +
+				" time_added      INTEGER NOT NULL," +
+				" time_added_zone TEXT    NOT NULL" +
+				")",
+				"id, user_id, title, subjects, min_questions, max_questions, time_added",
+				"id, user_id, title, subjects, min_questions, max_questions, time_added, time_added_zone",
+				(from,to)->{
+					to.setString(1, from.getString(1));
+					to.setString(2, from.getString(2));
+					to.setString(3, from.getString(3));
+					to.setString(4, from.getString(4));
+					to.setInt(5, from.getInt(5));
+					to.setInt(6, from.getInt(6));
+					Timestamps.bind(to, 7, parseISOTimestamp(from.getString(7)));
+				});
+		rebuildTable(connection, "quizes",
+				"(id              TEXT PRIMARY KEY NOT NULL," +
+				" user_id         TEXT    NOT NULL," +
+				" time_added      INTEGER NOT NULL," +
+				" time_added_zone TEXT    NOT NULL" +
+				")",
+				"id, user_id, time_added",
+				"id, user_id, time_added, time_added_zone",
+				(from,to)->{
+					to.setString(1, from.getString(1));
+					to.setString(2, from.getString(2));
+					Timestamps.bind(to, 3, parseISOTimestamp(from.getString(3)));
+				});
+		rebuildTable(connection, "questions",
+				"(id              TEXT PRIMARY KEY NOT NULL," +
+				" quiz_id         TEXT    NOT NULL," +
+				" q_order         INT     NOT NULL," +
+				" subject         TEXT    NOT NULL," +
+				" prompt          TEXT    NOT NULL," +
+				" prompt_format   TEXT    NOT NULL," +
+				" answer          TEXT    NOT NULL," +
+				" answer_format   TEXT    NOT NULL," +
+				" answer_value    TEXT    NOT NULL," +
+				" dimensions      TEXT    NOT NULL," +
+				" points          INT     NOT NULL," +
+				" time_added      INTEGER NOT NULL," +
+				" time_added_zone TEXT    NOT NULL" +
+				")",
+				"id, quiz_id, q_order, subject, prompt, prompt_format, answer, answer_format, answer_value, dimensions, points, time_added",
+				"id, quiz_id, q_order, subject, prompt, prompt_format, answer, answer_format, answer_value, dimensions, points, time_added, time_added_zone",
+				(from,to)->{
+					to.setString(1, from.getString(1));
+					to.setString(2, from.getString(2));
+					to.setInt(3, from.getInt(3));
+					for(int i=4;i<=10;i++)
+						to.setString(i, from.getString(i));
+					to.setInt(11, from.getInt(11));
+					Timestamps.bind(to, 12, parseISOTimestamp(from.getString(12)));
+				});
+		rebuildTable(connection, "answers",
+				"(id                 TEXT PRIMARY KEY NOT NULL," +
+				" question_id        TEXT    NOT NULL," +
+				" answer_value       TEXT    NOT NULL," +
+				" points             INT     NOT NULL," +
+				" time_asked         INTEGER NOT NULL," +
+				" time_asked_zone    TEXT    NOT NULL," +
+				" time_answered      INTEGER NOT NULL," +
+				" time_answered_zone TEXT    NOT NULL" +
+				")",
+				"id, question_id, answer_value, points, time_asked, time_answered",
+				"id, question_id, answer_value, points, time_asked, time_asked_zone, time_answered, time_answered_zone",
+				(from,to)->{
+					to.setString(1, from.getString(1));
+					to.setString(2, from.getString(2));
+					to.setString(3, from.getString(3));
+					to.setInt(4, from.getInt(4));
+					Timestamps.bind(to, 5, parseISOTimestamp(from.getString(5)));
+					Timestamps.bind(to, 7, parseISOTimestamp(from.getString(6)));
+				});
+		try(Statement statement = connection.createStatement()){
+			statement.executeUpdate("CREATE INDEX quiz_designs_user_id ON quiz_designs (user_id)");
+			statement.executeUpdate("CREATE INDEX quizes_user_id ON quizes (user_id)");
+			statement.executeUpdate("CREATE INDEX questions_quiz_id ON questions (quiz_id)");
+			statement.executeUpdate("CREATE INDEX answers_question_id_time_answered ON answers (question_id, time_answered)");
+			statement.executeUpdate("ANALYZE");
+		}
+	}
+
+	/**
+	 * Version 4: The questions index also covers subject, so that a user's questions on a subject
+	 * are found by probing each of the user's quizes rather than reading all of their questions.
+	 */
+	private static void indexQuestionsBySubject(Connection connection) throws SQLException{
+		try(Statement statement = connection.createStatement()){
+			statement.executeUpdate("DROP INDEX questions_quiz_id");
+			statement.executeUpdate("CREATE INDEX questions_quiz_id_subject ON questions (quiz_id, subject)");
+			statement.executeUpdate("ANALYZE questions");
+		}
+	}
+
+	/**
+	 * Version 5: Running totals of each user's answers per subject and question dimension, maintained as answers are saved and quizes deleted.
+	 * Existing answers are totalled as part of the migration.
+	 */
+	private static void createDimensionStatistics(Connection connection) throws SQLException{
+		try(Statement statement = connection.createStatement()){
+			statement.executeUpdate("CREATE TABLE dimension_statistics" +
+	                   "(user_id                  TEXT    NOT NULL," +
+	                   " subject                  TEXT    NOT NULL," +
+	                   " dimension                TEXT    NOT NULL," +
+	                   " attempts                 INTEGER NOT NULL," +
+	                   " points_earned            INTEGER NOT NULL," +
+	                   " points_possible          INTEGER NOT NULL," +
+	                   " weighted_points_earned   REAL    NOT NULL," +
+	                   " weighted_points_possible REAL    NOT NULL," +
+	                   " recent_score             REAL," +
+	                   " last_answered            INTEGER NOT NULL," +
+	                   " last_answered_zone       TEXT    NOT NULL," +
+	                   " PRIMARY KEY (user_id, subject, dimension)" +
+	                   ") WITHOUT ROWID");
+		}
+		// The totals are computed here as they were defined in version 5, rather than with DimensionStatisticsTable,
+		// so that later changes to how statistics are kept cannot change what this migration writes.
+		LinkedHashMap<List<String>,DimensionTotals> totals = new LinkedHashMap<>();
+		String sql = "SELECT qz.user_id, qs.subject, qs.dimensions, qs.points, a.points, a.time_answered, a.time_answered_zone " +
+				"FROM answers a JOIN questions qs ON qs.id = a.question_id JOIN quizes qz ON qz.id = qs.quiz_id " +
+				"ORDER BY a.time_answered";
+		try(
+				Statement statement = connection.createStatement();
+				ResultSet resultSet = statement.executeQuery(sql);
+		){
+			while(resultSet.next()){
+				String userID = resultSet.getString(1);
+				String subject = resultSet.getString(2);
+				int questionPoints = resultSet.getInt(4);
+				int points = resultSet.getInt(5);
+				long timeAnswered = resultSet.getLong(6);
+				String timeAnsweredZone = resultSet.getString(7);
+				for(Map.Entry<String,Float> dimension:DimensionsCodec.decode(resultSet.getBytes(3)).entrySet()){
+					DimensionTotals total = totals.computeIfAbsent(Arrays.asList(userID, subject, dimension.getKey()), (key)->new DimensionTotals());
+					total.attempts++;
+					total.pointsEarned += points;
+					total.pointsPossible += questionPoints;
+					total.weightedPointsEarned += points*dimension.getValue();
+					total.weightedPointsPossible += questionPoints*dimension.getValue();
+					if(questionPoints>0){
+						double score = points/(double)questionPoints;
+						total.recentScore = (total.recentScore==null)?score:total.recentScore+DimensionTotals.RECENT_SCORE_WEIGHT*(score-total.recentScore);
+					}
+					total.lastAnswered = timeAnswered;
+					total.lastAnsweredZone = timeAnsweredZone;
+				}
+			}
+		}
+		sql = "INSERT INTO dimension_statistics " +
+				"(user_id, subject, dimension, attempts, points_earned, points_possible, weighted_points_earned, weighted_points_possible, recent_score, last_answered, last_answered_zone) " +
+				"VALUES (?,?,?,?,?,?,?,?,?,?,?)";
+		try(PreparedStatement insert = connection.prepareStatement(sql)){
+			int batchSize = 0;
+			for(Map.Entry<List<String>,DimensionTotals> entry:totals.entrySet()){
+				DimensionTotals total = entry.getValue();
+				insert.setString(1, entry.getKey().get(0));
+				insert.setString(2, entry.getKey().get(1));
+				insert.setString(3, entry.getKey().get(2));
+				insert.setLong(4, total.attempts);
+				insert.setLong(5, total.pointsEarned);
+				insert.setLong(6, total.pointsPossible);
+				insert.setDouble(7, total.weightedPointsEarned);
+				insert.setDouble(8, total.weightedPointsPossible);
+				if(total.recentScore==null)
+					insert.setNull(9, Types.REAL);
+				else
+					insert.setDouble(9, total.recentScore);
+				insert.setLong(10, total.lastAnswered);
+				insert.setString(11, total.lastAnsweredZone);
+				insert.addBatch();
+				if(++batchSize>=1000){
+					insert.executeBatch();
+					batchSize = 0;
+				}
+			}
+			if(batchSize>0)
+				insert.executeBatch();
+		}
+	}
+
+	/**
+	 * Version 6: Quizes are indexed by creation time, so that quizes old enough to archive are found without reading the whole table.
+	 */
+	private static void indexQuizesByTimeAdded(Connection connection) throws SQLException{
+		try(Statement statement = connection.createStatement()){
+			statement.executeUpdate("CREATE INDEX quizes_time_added ON quizes (time_added)");
+		}
+	}
+
+	/**
+	 * Version 7: IDs are stored as 16-byte BLOBs rather than 36-character text, roughly halving the size of every index over them.
+	 * users, quizes, answers and dimension_statistics are stored WITHOUT ROWID, so that their primary key is not a second copy of each row's ID.
+	 * Their text columns (names, answers, subjects and time zones) are usually short.
+	 * quiz_designs and questions, whose rows hold JSON and prompts, keep their rowid, since large rows are stored less compactly without one.
+	 */
+	private static void storeKeysAsBlobs(Connection connection) throws SQLException{
+		rebuildTable(connection, "users",
+				"(id              BLOB    PRIMARY KEY NOT NULL," +
+				" name            TEXT    NOT NULL," +
+				" time_added      INTEGER NOT NULL," +
+				" time_added_zone TEXT    NOT NULL" +
+				") WITHOUT ROWID",
+				"id, name, time_added, time_added_zone",
+				"id, name, time_added, time_added_zone",
+				convertKeys(4, 1));
+		rebuildTable(connection, "quiz_designs",
+				"(id              BLOB    PRIMARY KEY NOT NULL," +
+				" user_id         BLOB    NOT NULL," +
+				" title           TEXT    NOT NULL," +
+				" subjects        TEXT    NOT NULL," +
+				" min_questions   INT     NOT NULL," +
+				" max_questions   INT     NOT NULL," +
+				" time_added      INTEGER NOT NULL," +
+				" time_added_zone TEXT    NOT NULL" +
+				")",
+				"id, user_id, title, subjects, min_questions, max_questions, time_added, time_added_zone",
+				"id, user_id, title, subjects, min_questions, max_questions, time_added, time_added_zone",
+				convertKeys(8, 1, 2));
+		rebuildTable(connection, "quizes",
+				"(id              BLOB    PRIMARY KEY NOT NULL," +
+				" user_id         BLOB    NOT NULL," +
+				" time_added      INTEGER NOT NULL," +
+				" time_added_zone TEXT    NOT NULL" +
+				") WITHOUT ROWID",
+				"id, user_id, time_added, time_added_zone",
+				"id, user_id, time_added, time_added_zone",
+				convertKeys(4, 1, 2));
+		rebuildTable(connection, "questions",
+				"(id              BLOB    PRIMARY KEY NOT NULL," +
+				" quiz_id         BLOB    NOT NULL," +
+				" q_order         INT     NOT NULL," +
+				" subject         TEXT    NOT NULL," +
+				" prompt          TEXT    NOT NULL," +
+				" prompt_format   TEXT    NOT NULL," +
+				" answer          TEXT    NOT NULL," +
+				" answer_format   TEXT    NOT NULL," +
+				" answer_value    TEXT    NOT NULL," +
+				" dimensions      TEXT    NOT NULL," +
+				" points          INT     NOT NULL," +
+				" time_added      INTEGER NOT NULL," +
+				" time_added_zone TEXT    NOT NULL" +
+				")",
+				"id, quiz_id, q_order, subject, prompt, prompt_format, answer, answer_format, answer_value, dimensions, points, time_added, time_added_zone",
+				"id, quiz_id, q_order, subject, prompt, prompt_format, answer, answer_format, answer_value, dimensions, points, time_added, time_added_zone",
+				convertKeys(13, 1, 2));
+		rebuildTable(connection, "answers",
+				"(id                 BLOB    PRIMARY KEY NOT NULL," +
+				" question_id        BLOB    NOT NULL," +
+				" answer_value       TEXT    NOT NULL," +
+				" points             INT     NOT NULL," +
+				" time_asked         INTEGER NOT NULL," +
+				" time_asked_zone    TEXT    NOT NULL," +
+				" time_answered      INTEGER NOT NULL," +
+				" time_answered_zone TEXT    NOT NULL" +
+				") WITHOUT ROWID",
+				"id, question_id, answer_value, points, time_asked, time_asked_zone, time_answered, time_answered_zone",
+				"id, question_id, answer_value, points, time_asked, time_asked_zone, time_answered, time_answered_zone",
+				convertKeys(8, 1, 2));
+		rebuildTable(connection, "dimension_statistics",
+				"(user_id                  BLOB    NOT NULL," +
+				" subject                  TEXT    NOT NULL," +
+				" dimension                TEXT    NOT NULL," +
+				" attempts                 INTEGER NOT NULL," +
+				" points_earned            INTEGER NOT NULL," +
+				" points_possible          INTEGER NOT NULL," +
+				" weighted_points_earned   REAL    NOT NULL," +
+				" weighted_points_possible REAL    NOT NULL," +
+				" recent_score             REAL," +
+				" last_answered            INTEGER NOT NULL," +
+				" last_answered_zone       TEXT    NOT NULL," +
+				" PRIMARY KEY (user_id, subject, dimension)" +
+				") WITHOUT ROWID",
+				"user_id, subject, dimension, attempts, points_earned, points_possible, weighted_points_earned, weighted_points_possible, recent_score, last_answered, last_answered_zone",
+				"user_id, subject, dimension, attempts, points_earned, points_possible, weighted_points_earned, weighted_points_possible, recent_score, last_answered, last_answered_zone",
+				convertKeys(11, 1));
+		try(Statement statement = connection.createStatement()){
+			statement.executeUpdate("CREATE INDEX quiz_designs_user_id ON quiz_designs (user_id)");
+			statement.executeUpdate("CREATE INDEX quizes_user_id ON quizes (user_id)");
+			statement.executeUpdate("CREATE INDEX quizes_time_added ON quizes (time_added)");
+			statement.executeUpdate("CREATE INDEX questions_quiz_id_subject ON questions (quiz_id, subject)");
+			statement.executeUpdate("CREATE INDEX answers_question_id_time_answered ON answers (question_id, time_answered)");
+			statement.executeUpdate("ANALYZE");
+		}
+	}
+
+	/**
+	 * Version 8: Each quiz design's subjects are held as rows of quiz_design_subjects, indexed by subject,
+	 * rather than as a JSON array in quiz_designs, so that designs are loaded without decoding JSON
+	 * and the designs using a subject are found without reading every design.
+	 */
+	private static void normalizeQuizDesignSubjects(Connection connection) throws SQLException{
+		try(Statement statement = connection.createStatement()){
+			// A design's subjects are a set, so the whole row is the key.
+			statement.executeUpdate("CREATE TABLE quiz_design_subjects" +
+	                   "(design_id     BLOB NOT NULL," +
+	                   " subject       TEXT NOT NULL," +
+	                   " min_questions INT  NOT NULL," +
+	                   " max_questions INT  NOT NULL," +
+	                   " PRIMARY KEY (design_id, subject, min_questions, max_questions)" +
+	                   ") WITHOUT ROWID");
+			try(
+					ResultSet resultSet = statement.executeQuery("SELECT id, subjects FROM quiz_designs");
+					PreparedStatement insert = connection.prepareStatement("INSERT OR IGNORE INTO quiz_design_subjects (design_id, subject, min_questions, max_questions) VALUES (?,?,?,?)");
+			){
+				int batchSize = 0;
+				while(resultSet.next()){
+					String designID = Keys.read(resultSet, 1);
+					for(QuizDesignSubject subject:decodeQuizDesignSubjects(designID, resultSet.getString(2))){
+						Keys.bind(insert, 1, designID);
+						insert.setString(2, subject.getSubject().toString());
+						insert.setInt(3, subject.getMinQuestions());
+						insert.setInt(4, subject.getMaxQuestions());
+						insert.addBatch();
+						batchSize++;
+					}
+					if(batchSize>=1000){
+						insert.executeBatch();
+						batchSize = 0;
+					}
+				}
+				if(batchSize>0)
+					insert.executeBatch();
+			}
+		}
+		rebuildTable(connection, "quiz_designs",
+				"(id              BLOB    PRIMARY KEY NOT NULL," +
+				" user_id         BLOB    NOT NULL," +
+				" title           TEXT    NOT NULL," +
+				" min_questions   INT     NOT NULL," +
+				" max_questions   INT     NOT NULL," +
+				" time_added      INTEGER NOT NULL," +
+				" time_added_zone TEXT    NOT NULL" +
+				")",
+				"id, user_id, title, min_questions, max_questions, time_added, time_added_zone",
+				"id, user_id, title, min_questions, max_questions, time_added, time_added_zone",
+				convertKeys(7, 1, 2));
+		try(Statement statement = connection.createStatement()){
+			statement.executeUpdate("CREATE INDEX quiz_designs_user_id ON quiz_designs (user_id)");
+			statement.executeUpdate("CREATE INDEX quiz_design_subjects_subject ON quiz_design_subjects (subject)");
+			statement.executeUpdate("ANALYZE quiz_designs");
+			statement.executeUpdate("ANALYZE quiz_design_subjects");
+		}
+	}
+
+	/**
+	 * Version 9: Named settings which must not change once a database has been written to, such as the number of shards.
+	 */
+	private static void createSettings(Connection connection) throws SQLException{
+		try(Statement statement = connection.createStatement()){
+			statement.executeUpdate("CREATE TABLE settings" +
+	                   "(name  TEXT PRIMARY KEY NOT NULL," +
+	                   " value TEXT NOT NULL" +
+	                   ") WITHOUT ROWID");
+		}
+	}
+
+	/**
+	 * @param designID
+	 * @param json A quiz design's subjects, as stored before version 8.
+	 * @return The decoded subjects.
+	 * @throws SQLException If the JSON is not a list of design subjects.
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<QuizDesignSubject> decodeQuizDesignSubjects(String designID, String json) throws SQLException{
+		try{
+			Object decodedJSON = JSONDecoder.decode(json, null);
+			if(!(decodedJSON instanceof List))
+				throw new IllegalArgumentException("Decoded JSON was not a list.");
+			List<Object> dbDesignSubjects = (List<Object>)decodedJSON;
+			ArrayList<QuizDesignSubject> retval = new ArrayList<>(dbDesignSubjects.size());
+			for(Object dbDesignSubject:dbDesignSubjects) {
+				if(!(dbDesignSubject instanceof Map))
+					throw new IllegalArgumentException("Decoded design subject was not a Map.");
+				retval.add(Marshal.unmarshalQuizDesignSubject((Map<String,Object>)dbDesignSubject));
+			}
+			return retval;
+		}
+		catch(IllegalArgumentException t){
+			throw new SQLException("Quiz design "+designID+" has invalid subjects.", t);
+		}
+	}
+
+	/**
+	 * @param columnCount The number of columns copied.
+	 * @param keyColumns The indexes of the columns holding IDs.
+	 * @return A converter which copies every column unchanged, except that IDs are converted to their stored form.
+	 */
+	private static RowConverter convertKeys(int columnCount, int... keyColumns){
+		return (from,to)->{
+			for(int i=1;i<=columnCount;i++)
+				to.setObject(i, from.getObject(i));
+			for(int keyColumn:keyColumns)
+				Keys.bind(to, keyColumn, Keys.read(from, keyColumn));
+		};
+	}
+
+	private static ZonedDateTime parseISOTimestamp(String timestamp){
+		return ZonedDateTime.parse(timestamp, DateTimeFormatter.ISO_DATE_TIME);
+	}
+
+	/**
+	 * Replaces a table with a new definition, copying every row across.
+	 * Indexes on the old table are dropped along with it and must be recreated by the caller.
+	 *
+	 * @param connection
+	 * @param table The name of the table.
+	 * @param definition The parenthesized column definitions of the new table.
+	 * @param selectColumns The columns read from each row of the old table.
+	 * @param insertColumns The columns written to each row of the new table.
+	 * @param converter Converts a row read from the old table into the insert parameters for the new table.
+	 * @throws SQLException
+	 */
+	private static void rebuildTable(Connection connection, String table, String definition, String selectColumns, String insertColumns, RowConverter converter) throws SQLException{
+		String newTable = table+"_new";
+		StringBuilder placeholders = new StringBuilder("?");
+		for(int i=insertColumns.split(",").length;i>1;i--)
+			placeholders.append(",?");
+		try(Statement statement = connection.createStatement()){
+			statement.executeUpdate("CREATE TABLE "+newTable+" "+definition);
+			try(
+					ResultSet resultSet = statement.executeQuery("SELECT "+selectColumns+" FROM "+table);
+					PreparedStatement insert = connection.prepareStatement("INSERT INTO "+newTable+" ("+insertColumns+") VALUES ("+placeholders+")");
+			){
+				int batchSize = 0;
+				while(resultSet.next()){
+					converter.convert(resultSet, insert);
+					insert.addBatch();
+					if(++batchSize==1000){
+						insert.executeBatch();
+						batchSize = 0;
+					}
+				}
+				if(batchSize>0)
+					insert.executeBatch();
+			}
+			statement.executeUpdate("DROP TABLE "+table);
+			statement.executeUpdate("ALTER TABLE "+newTable+" RENAME TO "+table);
+		}
+	}
+}
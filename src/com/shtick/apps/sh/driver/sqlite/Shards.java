@@ -0,0 +1,223 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Routes each row to the database holding it.
+ *
+ * Without sharding there is a single database, which is both the catalog and the only shard.
+ * With sharding, users are held by a catalog database, and everything belonging to a user
+ * (quiz designs, quizes, questions, answers and statistics) is held by one of several shard databases,
+ * each with its own connection pool, so that writes for users in different shards do not wait for each other.
+ *
+ * The shard holding a row is found from its ID alone. The low 16 bits of each ID's UUID select a bucket,
+ * and each bucket is assigned to a shard. These bits are random in both random and time-ordered UUIDs,
+ * so a user's bucket is random, and every ID created for something belonging to the user copies the user's bucket.
+ * The number of shards must therefore not change once a database has been written to,
+ * so it is recorded in the catalog's settings when the catalog is first opened, and a database is refused
+ * if it is opened with any other number.
+ *
+ * @author sean.cox
+ *
+ */
+class Shards {
+	/**
+	 * Opens a connection pool.
+	 */
+	interface PoolFactory {
+		/**
+		 * @param url
+		 * @return An open connection pool for the database, with its schema up to date.
+		 * @throws SQLException
+		 */
+		ConnectionPool open(String url) throws SQLException;
+	}
+
+	private static final long BUCKET_MASK = 0xFFFFL;
+	private static final String SETTING_SHARD_COUNT = "shard_count";
+	private final ConnectionPool catalog;
+	private final ConnectionPool[] shards;
+
+	/**
+	 * @param url The JDBC URL of the catalog database. Shard databases are named after it.
+	 * @param shardCount The number of shard databases, or 0 to keep everything in a single database.
+	 * @param poolFactory Opens and migrates a connection pool for a database URL.
+	 * @throws SQLException If a database cannot be opened. Any pools already opened are closed.
+	 */
+	public Shards(String url, int shardCount, PoolFactory poolFactory) throws SQLException {
+		super();
+		ArrayList<ConnectionPool> opened = new ArrayList<>(shardCount+1);
+		try{
+			catalog = poolFactory.open(url);
+			opened.add(catalog);
+			checkShardCount(url, catalog, shardCount);
+			if(shardCount==0){
+				shards = new ConnectionPool[]{catalog};
+				return;
+			}
+			shards = new ConnectionPool[shardCount];
+			for(int i=0;i<shardCount;i++){
+				shards[i] = poolFactory.open(getShardURL(url, i));
+				opened.add(shards[i]);
+			}
+		}
+		catch(SQLException|RuntimeException t){
+			for(ConnectionPool pool:opened)
+				pool.close();
+			throw t;
+		}
+	}
+
+	/**
+	 * Compares the number of shards with the number recorded in the catalog, recording it if none has been.
+	 * A catalog from before the number was recorded is taken to be unsharded if it holds quiz designs or quizes,
+	 * and sharded if its first shard database exists.
+	 *
+	 * @param url The JDBC URL of the catalog database.
+	 * @param catalog
+	 * @param shardCount
+	 * @throws SQLException If the database was created with a different number of shards.
+	 */
+	private static void checkShardCount(String url, ConnectionPool catalog, int shardCount) throws SQLException{
+		try(PooledConnection connection = catalog.acquireWriter()){
+			PreparedStatement select = connection.prepareStatement("SELECT value FROM settings WHERE name = ?");
+			select.setString(1, SETTING_SHARD_COUNT);
+			String recorded;
+			try(ResultSet resultSet = select.executeQuery()){
+				recorded = resultSet.next()?resultSet.getString(1):null;
+			}
+			if(recorded!=null){
+				if(!recorded.equals(Integer.toString(shardCount)))
+					throw new SQLException("The database at "+url+" was created with "+recorded+" shards, and cannot be opened with "+shardCount+".");
+				return;
+			}
+			if(shardCount>0){
+				PreparedStatement statement = connection.prepareStatement("SELECT EXISTS (SELECT 1 FROM quiz_designs) OR EXISTS (SELECT 1 FROM quizes)");
+				try(ResultSet resultSet = statement.executeQuery()){
+					if(resultSet.next()&&resultSet.getBoolean(1))
+						throw new SQLException("The database at "+url+" was created without sharding, and cannot be opened with "+shardCount+" shards.");
+				}
+			}
+			else{
+				File firstShard = Snapshots.getDatabaseFile(getShardURL(url, 0));
+				if((firstShard!=null)&&firstShard.exists())
+					throw new SQLException("The database at "+url+" was created with sharding, and cannot be opened without it.");
+			}
+			if(catalog.isReadOnly())
+				return;
+			PreparedStatement insert = connection.prepareStatement("INSERT OR IGNORE INTO settings (name, value) VALUES (?,?)");
+			insert.setString(1, SETTING_SHARD_COUNT);
+			insert.setString(2, Integer.toString(shardCount));
+			insert.executeUpdate();
+		}
+	}
+
+	/**
+	 * @param url The JDBC URL of the catalog database.
+	 * @param shard
+	 * @return The JDBC URL of the shard database, which is the catalog's name with -shard-N inserted before any .db extension.
+	 */
+	static String getShardURL(String url, int shard){
+		return insertSuffix(url, "-shard-"+shard);
+	}
+
+	/**
+	 * @param url A database URL.
+	 * @param suffix
+	 * @return The URL with the suffix inserted at the end of the database's name, before any .db extension or URI query.
+	 */
+	static String insertSuffix(String url, String suffix){
+		int queryStart = url.indexOf('?');
+		String path = (queryStart<0)?url:url.substring(0, queryStart);
+		String query = (queryStart<0)?"":url.substring(queryStart);
+		if(path.endsWith(".db"))
+			return path.substring(0, path.length()-3)+suffix+".db"+query;
+		return path+suffix+query;
+	}
+
+	/**
+	 * @return true if user data is divided between shard databases, and false if there is a single database.
+	 */
+	public boolean isSharded(){
+		return shards[0]!=catalog;
+	}
+
+	/**
+	 * @return The pool for the database holding users.
+	 */
+	public ConnectionPool getCatalog(){
+		return catalog;
+	}
+
+	/**
+	 * @param id The ID of a user, or of anything belonging to a user.
+	 * @return The pool for the database holding the user's data.
+	 */
+	public ConnectionPool getShard(Object id){
+		if(shards.length==1)
+			return shards[0];
+		return shards[(int)(getBucket(id.toString())%shards.length)];
+	}
+
+	/**
+	 * @return The pools of every database, the catalog first. Without sharding, this is the single pool.
+	 */
+	public List<ConnectionPool> getPools(){
+		LinkedHashSet<ConnectionPool> retval = new LinkedHashSet<>();
+		retval.add(catalog);
+		Collections.addAll(retval, shards);
+		return new ArrayList<>(retval);
+	}
+
+	/**
+	 * @param ownerID The ID of a user, or of anything belonging to the user, which the new ID will belong to.
+	 * @return A new time-ordered ID, held by the same shard as ownerID.
+	 */
+	public String createID(Object ownerID){
+		UUID uuid = Keys.createUUID();
+		if(!isSharded())
+			return uuid.toString();
+		long leastSignificantBits = (uuid.getLeastSignificantBits()&~BUCKET_MASK)|getBucket(ownerID.toString());
+		return new UUID(uuid.getMostSignificantBits(), leastSignificantBits).toString();
+	}
+
+	/**
+	 * @param getter
+	 * @return The sum of the value over every pool.
+	 */
+	public long sum(Function<ConnectionPool,Long> getter){
+		long retval = 0;
+		for(ConnectionPool pool:getPools())
+			retval += getter.apply(pool);
+		return retval;
+	}
+
+	/**
+	 * Closes every pool.
+	 */
+	public void close(){
+		for(ConnectionPool pool:getPools())
+			pool.close();
+	}
+
+	private static long getBucket(String id){
+		try{
+			return UUID.fromString(id).getLeastSignificantBits()&BUCKET_MASK;
+		}
+		catch(IllegalArgumentException t){
+			return id.hashCode()&BUCKET_MASK;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Logs statements which take longer than a threshold to run.
+ *
+ * Each log entry gives the SQL, the operation it ran under, the time spent in SQLite, the number of rows returned
+ * or changed and, if enabled, the bound parameter values. The first time a statement is logged, SQLite's query plan
+ * for it is logged as well, so that a statement which has started scanning a whole table is easy to spot.
+ *
+ * @author sean.cox
+ *
+ */
+class SlowQueryLog {
+	private final long thresholdNanos;
+	private final boolean logParameters;
+	private final DriverMetrics metrics;
+	private final Set<String> explained = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param thresholdMillis The time, in milliseconds, a statement must take before it is logged.
+	 * @param logParameters true if bound parameter values should be logged, and false if they should be redacted.
+	 * @param metrics The metrics to count slow statements in, and to name the operation a statement ran under, or null.
+	 */
+	public SlowQueryLog(int thresholdMillis, boolean logParameters, DriverMetrics metrics) {
+		super();
+		this.thresholdNanos = thresholdMillis*1000000L;
+		this.logParameters = logParameters;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Logs the statement if it took longer than the threshold.
+	 * The query plan is read using the given connection, so this must be called by the thread holding it.
+	 *
+	 * @param connection The connection the statement ran on.
+	 * @param sql
+	 * @param parameters The parameter values bound when the statement ran, indexed from 0. Unbound parameters are null.
+	 * @param elapsedNanos The time spent running the statement.
+	 * @param rows The number of rows returned or changed.
+	 */
+	public void record(Connection connection, String sql, Object[] parameters, long elapsedNanos, long rows){
+		if(elapsedNanos<thresholdNanos)
+			return;
+		String operation = null;
+		if(metrics!=null){
+			metrics.recordSlowQuery();
+			operation = metrics.getCurrentOperationName();
+		}
+		StringBuilder message = new StringBuilder("Slow query");
+		if(operation!=null)
+			message.append(" in ").append(operation);
+		message.append(" (").append(elapsedNanos/1000).append("us, ").append(rows).append(" rows): ").append(sql);
+		if(parameters.length>0)
+			message.append(" ").append(formatParameters(parameters));
+		if(explained.add(sql))
+			message.append(System.lineSeparator()).append(explain(connection, sql, parameters));
+		System.out.println(message);
+	}
+
+	private String formatParameters(Object[] parameters){
+		StringBuilder retval = new StringBuilder("[");
+		for(int i=0;i<parameters.length;i++){
+			if(i>0)
+				retval.append(", ");
+			if(!logParameters)
+				retval.append("?");
+			else if(parameters[i] instanceof String)
+				retval.append("'").append(parameters[i]).append("'");
+			else if((parameters[i] instanceof byte[])&&(((byte[])parameters[i]).length==16))
+				retval.append("ID ").append(Keys.toString((byte[])parameters[i]));
+			else if(parameters[i] instanceof byte[])
+				retval.append("BLOB(").append(((byte[])parameters[i]).length).append(")");
+			else
+				retval.append(parameters[i]);
+		}
+		return retval.append("]").toString();
+	}
+
+	/**
+	 * The plan is read with the same parameters bound, since SQLite can plan differently for different values.
+	 *
+	 * @param connection
+	 * @param sql
+	 * @param parameters
+	 * @return One line per step of the plan.
+	 */
+	private static String explain(Connection connection, String sql, Object[] parameters){
+		StringBuilder retval = new StringBuilder("  Query plan:");
+		try(PreparedStatement statement = connection.prepareStatement("EXPLAIN QUERY PLAN "+sql)){
+			for(int i=0;i<parameters.length;i++)
+				statement.setObject(i+1, parameters[i]);
+			try(ResultSet resultSet = statement.executeQuery()){
+				int detailColumn = resultSet.getMetaData().getColumnCount();
+				boolean empty = true;
+				while(resultSet.next()){
+					retval.append(System.lineSeparator()).append("    ").append(resultSet.getString(detailColumn));
+					empty = false;
+				}
+				if(empty)
+					retval.append(" no table access");
+			}
+		}
+		catch(SQLException t){
+			retval.append(" unavailable (").append(t.getMessage()).append(")");
+		}
+		return retval.toString();
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Copies the live databases to snapshot files which can be queried without holding up the live databases' writers.
+ *
+ * Each database is copied with SQLite's online backup API, from a reader connection holding a read transaction
+ * for the length of the copy. The copy is therefore consistent, and since the live databases are in WAL mode,
+ * writers carry on while it is made. When sharding is used, each shard is consistent with itself,
+ * but the shards are copied one after another rather than at a single instant.
+ *
+ * A snapshot is written to a temporary file, switched out of WAL mode so that it can be opened read-only,
+ * and then moved over the previous snapshot.
+ *
+ * @author sean.cox
+ *
+ */
+class Snapshots {
+	private static final String SNAPSHOT_SUFFIX = ".snapshot.db";
+	private final File snapshotFile;
+	private final Object lock = new Object();
+
+	/**
+	 * @param databaseURL The JDBC URL of the live database.
+	 * @param snapshotDirectory The directory to write snapshots to, or null to write them alongside the live database.
+	 * @throws IllegalArgumentException If no snapshot directory is given and the live database is not a file.
+	 */
+	public Snapshots(String databaseURL, String snapshotDirectory) throws IllegalArgumentException{
+		super();
+		File databaseFile = getDatabaseFile(databaseURL);
+		String name = "sh.quiz";
+		if(databaseFile!=null){
+			name = databaseFile.getName();
+			if(name.endsWith(".db"))
+				name = name.substring(0, name.length()-3);
+		}
+		File directory;
+		if(snapshotDirectory!=null)
+			directory = new File(snapshotDirectory);
+		else if(databaseFile!=null)
+			directory = databaseFile.getAbsoluteFile().getParentFile();
+		else
+			throw new IllegalArgumentException("A snapshot directory must be configured for the database "+databaseURL+".");
+		snapshotFile = new File(directory, name+SNAPSHOT_SUFFIX);
+	}
+
+	/**
+	 * @param databaseURL
+	 * @return The file named by a SQLite JDBC URL, or null if the database is held in memory.
+	 */
+	static File getDatabaseFile(String databaseURL){
+		String path = databaseURL.startsWith("jdbc:sqlite:")?databaseURL.substring("jdbc:sqlite:".length()):databaseURL;
+		int queryStart = path.indexOf('?');
+		if(queryStart>=0){
+			if(path.substring(queryStart).contains("mode=memory"))
+				return null;
+			path = path.substring(0, queryStart);
+		}
+		if(path.startsWith("file:"))
+			path = path.substring("file:".length());
+		if(path.isEmpty()||path.equals(":memory:"))
+			return null;
+		return new File(path);
+	}
+
+	/**
+	 * @return The JDBC URL of the latest snapshot of the catalog, or of the single database without sharding.
+	 *         Shard snapshots are named after it in the same way that shards are named after the live database.
+	 */
+	public String getSnapshotURL(){
+		return "jdbc:sqlite:"+snapshotFile.getPath();
+	}
+
+	/**
+	 * @return true if a snapshot has been taken.
+	 */
+	public boolean exists(){
+		return snapshotFile.exists();
+	}
+
+	/**
+	 * Copies every database, replacing the previous snapshot.
+	 * Only one snapshot is taken at a time.
+	 *
+	 * @param pools The pools of the live databases, the catalog first followed by each shard in order, as returned by Shards.getPools().
+	 * @return The snapshot file of the catalog, or of the single database without sharding.
+	 * @throws IOException
+	 */
+	public File take(List<ConnectionPool> pools) throws IOException{
+		synchronized(lock){
+			Files.createDirectories(snapshotFile.getAbsoluteFile().getParentFile().toPath());
+			take(pools.get(0), snapshotFile);
+			for(int i=1;i<pools.size();i++){
+				String shardURL = Shards.getShardURL(getSnapshotURL(), i-1);
+				take(pools.get(i), new File(shardURL.substring("jdbc:sqlite:".length())));
+			}
+			return snapshotFile;
+		}
+	}
+
+	private static void take(ConnectionPool pool, File file) throws IOException{
+		File temporaryFile = new File(file.getPath()+".tmp");
+		Files.deleteIfExists(temporaryFile.toPath());
+		try{
+			try (PooledConnection connection = pool.acquireReader()) {
+				Connection sourceConnection = connection.getConnection();
+				// Hold a read transaction open, so that the backup copies a single version of the database
+				// instead of restarting whenever a writer commits.
+				sourceConnection.setAutoCommit(false);
+				try(Statement statement = sourceConnection.createStatement()){
+					statement.executeQuery("SELECT count(*) FROM sqlite_master").close();
+					statement.executeUpdate("backup to \""+temporaryFile.getAbsolutePath()+"\"");
+				}
+				finally{
+					sourceConnection.rollback();
+					sourceConnection.setAutoCommit(true);
+				}
+			}
+			try(Connection snapshotConnection = DriverManager.getConnection("jdbc:sqlite:"+temporaryFile.getAbsolutePath());
+					Statement statement = snapshotConnection.createStatement()){
+				// The copy keeps the live database's WAL mode, which cannot be read without write access to the directory.
+				try(ResultSet resultSet = statement.executeQuery("PRAGMA journal_mode=DELETE")){
+					resultSet.next();
+				}
+			}
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(SQLException t){
+			throw new IOException(t);
+		}
+		finally{
+			Files.deleteIfExists(temporaryFile.toPath());
+		}
+	}
+}
@@ -0,0 +1,55 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.util.List;
+
+import com.shtick.apps.sh.core.Question;
+import com.shtick.apps.sh.core.Subject;
+import com.shtick.apps.sh.core.UserID;
+
+/**
+ * The generated, shuffled questions for a quiz which has not yet been assigned IDs or saved.
+ *
+ * @author sean.cox
+ *
+ */
+class StagedQuiz {
+	private final UserID userID;
+	private final List<Subject> subjects;
+	private final List<Question> questions;
+
+	/**
+	 * @param userID The user the quiz is for.
+	 * @param subjects The subject of each question, in the same order as questions.
+	 * @param questions The questions as returned by the subject question generators, in quiz order.
+	 */
+	public StagedQuiz(UserID userID, List<Subject> subjects, List<Question> questions) {
+		super();
+		this.userID = userID;
+		this.subjects = subjects;
+		this.questions = questions;
+	}
+
+	/**
+	 * @return the userID
+	 */
+	public UserID getUserID() {
+		return userID;
+	}
+
+	/**
+	 * @return The subject of each question, in the same order as getQuestions().
+	 */
+	public List<Subject> getSubjects() {
+		return subjects;
+	}
+
+	/**
+	 * @return The questions as returned by the subject question generators, in quiz order.
+	 */
+	public List<Question> getQuestions() {
+		return questions;
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, least-recently-used cache of prepared statements for a single connection,
+ * so that SQLite compiles each distinct statement once rather than on every call.
+ *
+ * A connection is only ever leased to one thread at a time, so the cache itself is not synchronized.
+ * A statement evicted while the connection is leased may still be in use by the lessee, which can hold
+ * several statements at once, so evicted statements are only closed when the lease is released.
+ * The hit and miss counters may be shared between caches and read from any thread.
+ *
+ * @author sean.cox
+ *
+ */
+class StatementCache {
+	private final Connection connection;
+	private final LinkedHashMap<String,PreparedStatement> statements;
+	private final ArrayList<PreparedStatement> evicted = new ArrayList<>();
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final DriverMetrics metrics;
+	private final SlowQueryLog slowQueryLog;
+
+	/**
+	 * @param connection The connection statements are prepared on.
+	 * @param maxSize The maximum number of statements to retain.
+	 * @param hits A counter incremented whenever a cached statement is reused.
+	 * @param misses A counter incremented whenever a statement has to be prepared.
+	 * @param metrics The metrics to report rows read and written to, or null.
+	 * @param slowQueryLog The log to report slow statements to, or null.
+	 */
+	public StatementCache(Connection connection, final int maxSize, LongAdder hits, LongAdder misses, DriverMetrics metrics, SlowQueryLog slowQueryLog) {
+		super();
+		this.connection = connection;
+		this.hits = hits;
+		this.misses = misses;
+		this.metrics = metrics;
+		this.slowQueryLog = slowQueryLog;
+		statements = new LinkedHashMap<String,PreparedStatement>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,PreparedStatement> eldest) {
+				if(size()<=maxSize)
+					return false;
+				evicted.add(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * The returned statement is owned by the cache and must not be closed by the caller,
+	 * but any ResultSet obtained from it should be closed as soon as it has been read.
+	 *
+	 * @param sql
+	 * @return A prepared statement for the given SQL.
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepareStatement(String sql) throws SQLException{
+		PreparedStatement statement = statements.get(sql);
+		if((statement!=null)&&!statement.isClosed()){
+			hits.increment();
+			return statement;
+		}
+		misses.increment();
+		statement = connection.prepareStatement(sql);
+		if((metrics!=null)||(slowQueryLog!=null))
+			statement = MonitoredStatement.wrap(statement, connection, sql, metrics, slowQueryLog);
+		statements.put(sql, statement);
+		return statement;
+	}
+
+	/**
+	 * Closes the statements evicted since the last release.
+	 * This is called when the connection's lease ends, once none of the statements can still be in use.
+	 */
+	public void release(){
+		for(PreparedStatement statement:evicted)
+			closeQuietly(statement);
+		evicted.clear();
+	}
+
+	/**
+	 * Closes all cached statements.
+	 */
+	public void clear(){
+		release();
+		for(PreparedStatement statement:statements.values())
+			closeQuietly(statement);
+		statements.clear();
+	}
+
+	private static void closeQuietly(PreparedStatement statement){
+		try{
+			statement.close();
+		}
+		catch(SQLException t){
+			t.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Conversion between ZonedDateTime and its stored form.
+ *
+ * A timestamp is stored in two adjacent columns: an INTEGER holding milliseconds since the epoch,
+ * which can be indexed and sorted, followed by a TEXT column holding the zone ID, so that the
+ * original ZonedDateTime can be reconstructed.
+ *
+ * @author sean.cox
+ *
+ */
+class Timestamps {
+	private static final ConcurrentHashMap<String,ZoneId> ZONES = new ConcurrentHashMap<>();
+
+	/**
+	 * Binds a timestamp to two adjacent parameters.
+	 *
+	 * @param statement
+	 * @param index The index of the millisecond parameter. The zone is bound to index+1.
+	 * @param time
+	 * @throws SQLException
+	 */
+	public static void bind(PreparedStatement statement, int index, ZonedDateTime time) throws SQLException{
+		statement.setLong(index, time.toInstant().toEpochMilli());
+		statement.setString(index+1, time.getZone().getId());
+	}
+
+	/**
+	 * Reads a timestamp from two adjacent columns.
+	 *
+	 * @param resultSet
+	 * @param index The index of the millisecond column. The zone is read from index+1.
+	 * @return The timestamp.
+	 * @throws SQLException
+	 */
+	public static ZonedDateTime read(ResultSet resultSet, int index) throws SQLException{
+		return toZonedDateTime(resultSet.getLong(index), resultSet.getString(index+1));
+	}
+
+	/**
+	 * @param millis
+	 * @param zone
+	 * @return The ZonedDateTime for the given epoch milliseconds and zone ID.
+	 */
+	public static ZonedDateTime toZonedDateTime(long millis, String zone){
+		ZoneId zoneID = ZONES.get(zone);
+		if(zoneID==null){
+			zoneID = ZoneId.of(zone);
+			ZONES.putIfAbsent(zone, zoneID);
+		}
+		return ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), zoneID);
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ *
+ */
+package com.shtick.apps.sh.driver.sqlite;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulated timings for a repeated operation. Safe for concurrent use.
+ *
+ * @author sean.cox
+ *
+ */
+public class TimingStatistics {
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Records one occurrence of the operation.
+	 *
+	 * @param nanos The time the operation took, in nanoseconds.
+	 */
+	public void record(long nanos){
+		count.increment();
+		totalNanos.add(nanos);
+		maxNanos.accumulate(nanos);
+	}
+
+	/**
+	 * @return The number of times the operation has been recorded.
+	 */
+	public long getCount(){
+		return count.sum();
+	}
+
+	/**
+	 * @return The total time taken by all recorded occurrences, in nanoseconds.
+	 */
+	public long getTotalNanos(){
+		return totalNanos.sum();
+	}
+
+	/**
+	 * @return The longest time taken by a single occurrence, in nanoseconds.
+	 */
+	public long getMaxNanos(){
+		return maxNanos.get();
+	}
+
+	/**
+	 * @return The mean time taken per occurrence, in nanoseconds, or 0 if nothing has been recorded.
+	 */
+	public long getMeanNanos(){
+		long count = getCount();
+		if(count==0)
+			return 0;
+		return getTotalNanos()/count;
+	}
+
+	@Override
+	public String toString() {
+		return "count="+getCount()+", mean="+(getMeanNanos()/1000000.0)+"ms, max="+(getMaxNanos()/1000000.0)+"ms";
+	}
+}
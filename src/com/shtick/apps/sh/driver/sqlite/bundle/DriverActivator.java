@@ -1,18 +1,24 @@
 package com.shtick.apps.sh.driver.sqlite.bundle;
 
+import java.io.IOException;
 import java.util.Hashtable;
+import java.util.function.Supplier;
 
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
 
 import com.shtick.apps.sh.core.Driver;
+import com.shtick.apps.sh.driver.sqlite.DriverConfiguration;
+import com.shtick.apps.sh.driver.sqlite.DriverMetrics;
 import com.shtick.apps.sh.driver.sqlite.SQLiteDriver;
 
 /**
  **/
 public class DriverActivator implements BundleActivator {
 	private ServiceRegistration<?> driverRegistration;
+	private ServiceRegistration<?> metricsRegistration;
+	private SQLiteDriver driver;
 	/**
 	 * A source for registered subject question generators.
 	 */
@@ -28,7 +34,12 @@ public class DriverActivator implements BundleActivator {
 	public void start(BundleContext context){
 		System.out.println(this.getClass().getCanonicalName()+": Starting.");
 		SUBJECT_QUESTION_GENERATOR_TRACKER = new SubjectQuestionGeneratorTracker(context);
-		driverRegistration=context.registerService(Driver.class.getName(), new SQLiteDriver(),new Hashtable<String, String>());
+		driver = new SQLiteDriver(DriverConfiguration.fromProperties(context::getProperty));
+		driverRegistration=context.registerService(Driver.class.getName(), driver,new Hashtable<String, String>());
+		// The driver's package is not exported, so the metrics are published as a Supplier of a Map.
+		Hashtable<String, Object> metricsProperties = new Hashtable<>();
+		metricsProperties.put(DriverMetrics.SERVICE_PROPERTY, Boolean.TRUE);
+		metricsRegistration=context.registerService(Supplier.class.getName(), driver.getMetrics(),metricsProperties);
     }
 
     /**
@@ -40,9 +51,26 @@ public class DriverActivator implements BundleActivator {
     @Override
 	public void stop(BundleContext context){
 		System.out.println(this.getClass().getCanonicalName()+": Stopping.");
-		SUBJECT_QUESTION_GENERATOR_TRACKER = null;
+		if(metricsRegistration!=null)
+			metricsRegistration.unregister();
+		metricsRegistration = null;
 		if(driverRegistration!=null)
 			driverRegistration.unregister();
+		driverRegistration = null;
+		// Until the driver is closed, its quiz pool may still be generating quizes in the background with the tracked generators,
+		// so the tracker is closed afterwards. Closing the driver also saves any answers still queued for writing.
+		if(driver!=null){
+			try{
+				driver.close();
+			}
+			catch(IOException t){
+				t.printStackTrace();
+			}
+		}
+		driver = null;
+		if(SUBJECT_QUESTION_GENERATOR_TRACKER!=null)
+			SUBJECT_QUESTION_GENERATOR_TRACKER.close();
+		SUBJECT_QUESTION_GENERATOR_TRACKER = null;
     }
 
 }
\ No newline at end of file
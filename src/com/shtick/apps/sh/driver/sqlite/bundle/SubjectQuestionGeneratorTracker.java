@@ -1,10 +1,12 @@
 /**
- * 
+ *
  */
 package com.shtick.apps.sh.driver.sqlite.bundle;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Set;
 
 import org.osgi.framework.BundleContext;
@@ -17,6 +19,12 @@ import com.shtick.apps.sh.core.Subject;
 import com.shtick.apps.sh.core.SubjectQuestionGenerator;
 
 /**
+ * Tracks the registered SubjectQuestionGenerator services by subject.
+ *
+ * Lookups read an immutable snapshot of the registry through a volatile field, so they take no lock and allocate nothing.
+ * Service events rebuild the snapshot under a lock. Each service object is obtained once, when its service is registered,
+ * and released when it is unregistered.
+ *
  * @author sean.cox
  *
  */
@@ -26,7 +34,36 @@ public class SubjectQuestionGeneratorTracker implements ServiceListener{
 	 * the null data type means that the app does not require data to be opened.
 	 */
 	public static final String DATA_TYPE_NULL="null";
-	private HashMap<Subject,ServiceReference<SubjectQuestionGenerator>> subjectQuestionGenerators=new HashMap<>();
+
+	private static class Registration {
+		private final SubjectQuestionGenerator generator;
+		private final Subject subject;
+
+		public Registration(SubjectQuestionGenerator generator, Subject subject) {
+			this.generator = generator;
+			this.subject = subject;
+		}
+	}
+
+	private static class Snapshot {
+		private final HashMap<Subject,SubjectQuestionGenerator> generatorsBySubject;
+		private final Set<SubjectQuestionGenerator> generators;
+		private final Set<Subject> subjects;
+
+		public Snapshot(HashMap<Subject,SubjectQuestionGenerator> generatorsBySubject) {
+			this.generatorsBySubject = generatorsBySubject;
+			this.generators = Collections.unmodifiableSet(new HashSet<>(generatorsBySubject.values()));
+			this.subjects = Collections.unmodifiableSet(generatorsBySubject.keySet());
+		}
+	}
+
+	private final Object lock = new Object();
+	/**
+	 * Every tracked service, in the order registered, including any duplicates of a subject which is already served.
+	 * Only accessed while holding lock.
+	 */
+	private final LinkedHashMap<ServiceReference<?>,Registration> registrations = new LinkedHashMap<>();
+	private volatile Snapshot snapshot = new Snapshot(new HashMap<>());
 	private BundleContext bundleContext;
 
 	/**
@@ -36,7 +73,7 @@ public class SubjectQuestionGeneratorTracker implements ServiceListener{
 		super();
 		this.bundleContext = bundleContext;
 		try{
-			synchronized(subjectQuestionGenerators){
+			synchronized(lock){
 				bundleContext.addServiceListener(this, "(objectClass=com.shtick.apps.sh.core.SubjectQuestionGenerator)");
 				ServiceReference<?>[] references=bundleContext.getServiceReferences(SubjectQuestionGenerator.class.getName(), null);
 				if(references!=null){
@@ -48,87 +85,151 @@ public class SubjectQuestionGeneratorTracker implements ServiceListener{
 							Object service=bundleContext.getService(ref);
 							System.err.println(service.getClass().getCanonicalName());
 							System.err.flush();
+							bundleContext.ungetService(ref);
 							t.printStackTrace();
 						}
 					}
 				}
+				publishSnapshot();
 			}
 		}
 		catch(InvalidSyntaxException t){
 			throw new RuntimeException(t);
 		}
 	}
-	
+
 	/**
-	 * 
+	 *
 	 * @param subject
 	 * @return The SubjectQuestionGenerator for the given subject, or null if none is known.
 	 */
 	public SubjectQuestionGenerator getSubjectQuestionGenerator(Subject subject){
-		ServiceReference<?> reference = subjectQuestionGenerators.get(subject);
-		if(reference==null)
-			return null;
-		return (SubjectQuestionGenerator)bundleContext.getService(reference);
+		return snapshot.generatorsBySubject.get(subject);
 	}
-	
+
 	/**
-	 * 
-	 * @return A set of already registered appFactories.
+	 *
+	 * @return An unmodifiable set of the registered generators, one per subject.
 	 */
 	public Set<SubjectQuestionGenerator> getSubjectQuestionGenerators(){
-		HashSet<SubjectQuestionGenerator> retval=new HashSet<>();
-		synchronized(subjectQuestionGenerators){
-			SubjectQuestionGenerator service;
-			for(ServiceReference<?> reference:subjectQuestionGenerators.values()){
-				service=(SubjectQuestionGenerator)bundleContext.getService(reference);
-				retval.add(service);
-			}
+		return snapshot.generators;
+	}
+
+	/**
+	 *
+	 * @return An unmodifiable set of the subjects which have a registered generator.
+	 */
+	public Set<Subject> getSubjects(){
+		return snapshot.subjects;
+	}
+
+	/**
+	 * Stops tracking services and releases all service objects obtained by this tracker.
+	 */
+	public void close(){
+		bundleContext.removeServiceListener(this);
+		synchronized(lock){
+			for(ServiceReference<?> ref:registrations.keySet())
+				bundleContext.ungetService(ref);
+			registrations.clear();
+			publishSnapshot();
 		}
-		return retval;
 	}
-	
+
 	/**
-	 * The caller of this method should be synchronized on the appFactoryServices object.
-	 * 
+	 * The caller of this method should be synchronized on lock, and should call publishSnapshot() afterwards.
+	 *
 	 * @param ref
-	 * @throws AbstractMethodError If the AppFactoryService is not compatible with this implementation of the AppTracker sufficient to be registered.
+	 * @throws AbstractMethodError If the SubjectQuestionGenerator is not compatible with this implementation of the tracker sufficient to be registered.
 	 */
 	private void registerSubjectQuestionGenerator(ServiceReference<?> ref) throws AbstractMethodError{
+		if(registrations.containsKey(ref))
+			return;
 		Object service=bundleContext.getService(ref);
-		if(!(service instanceof SubjectQuestionGenerator))
+		if(!(service instanceof SubjectQuestionGenerator)){
+			if(service!=null)
+				bundleContext.ungetService(ref);
 			return;
+		}
 		SubjectQuestionGenerator subjectQuestionGenerator=(SubjectQuestionGenerator)service;
-		Subject subjectName = subjectQuestionGenerator.getSubject();
-		if(!subjectQuestionGenerators.containsKey(subjectName))
-			subjectQuestionGenerators.put(subjectName,(ServiceReference<SubjectQuestionGenerator>)ref);
-		else
-			System.err.println("Attempted to register duplicate subject: "+subjectName);
+		Subject subjectName;
+		try{
+			subjectName = subjectQuestionGenerator.getSubject();
+		}
+		catch(AbstractMethodError t){
+			bundleContext.ungetService(ref);
+			throw t;
+		}
+		for(Registration registration:registrations.values()){
+			if(registration.subject.equals(subjectName)){
+				System.err.println("Attempted to register duplicate subject: "+subjectName);
+				break;
+			}
+		}
+		// Duplicates are still tracked, so that one can take over if the generator in use is unregistered.
+		registrations.put(ref, new Registration(subjectQuestionGenerator, subjectName));
 	}
 
 	/**
-	 * The caller of this method should be synchronized on the appFactoryServices object.
-	 * 
+	 * The caller of this method should be synchronized on lock, and should call publishSnapshot() afterwards.
+	 *
 	 * @param ref
 	 */
 	private void unregisterSubjectQuestionGenerator(ServiceReference<?> ref){
-		Object service=bundleContext.getService(ref);
-		if(!(service instanceof SubjectQuestionGenerator))
+		if(registrations.remove(ref)!=null)
+			bundleContext.ungetService(ref);
+	}
+
+	/**
+	 * The caller of this method should be synchronized on lock, and should call publishSnapshot() afterwards.
+	 *
+	 * @param ref
+	 */
+	private void modifySubjectQuestionGenerator(ServiceReference<?> ref){
+		Registration registration = registrations.get(ref);
+		if(registration==null){
+			registerSubjectQuestionGenerator(ref);
+			return;
+		}
+		// The generator's subject may have changed along with its properties.
+		Subject subjectName = registration.generator.getSubject();
+		if(subjectName.equals(registration.subject))
 			return;
-		SubjectQuestionGenerator appFactoryService=(SubjectQuestionGenerator)service;
-		subjectQuestionGenerators.remove(service.getClass().getCanonicalName());
+		// Re-insert at the end, as though newly registered under its new subject.
+		registrations.remove(ref);
+		registrations.put(ref, new Registration(registration.generator, subjectName));
+	}
+
+	/**
+	 * Replaces the snapshot read by lookups. The earliest registered generator for each subject is used.
+	 * The caller of this method should be synchronized on lock.
+	 */
+	private void publishSnapshot(){
+		HashMap<Subject,SubjectQuestionGenerator> generatorsBySubject = new HashMap<>();
+		for(Registration registration:registrations.values())
+			generatorsBySubject.putIfAbsent(registration.subject, registration.generator);
+		snapshot = new Snapshot(generatorsBySubject);
 	}
 
 	@Override
 	public void serviceChanged(ServiceEvent event) {
-		synchronized(subjectQuestionGenerators){
-			if(event.getType() == ServiceEvent.REGISTERED){
-				ServiceReference<?> ref=event.getServiceReference();
+		synchronized(lock){
+			ServiceReference<?> ref=event.getServiceReference();
+			switch(event.getType()){
+			case ServiceEvent.REGISTERED:
 				registerSubjectQuestionGenerator(ref);
-			}
-			else if(event.getType() == ServiceEvent.UNREGISTERING){
-				ServiceReference<?> ref=event.getServiceReference();
+				break;
+			case ServiceEvent.MODIFIED:
+				modifySubjectQuestionGenerator(ref);
+				break;
+			case ServiceEvent.UNREGISTERING:
+			case ServiceEvent.MODIFIED_ENDMATCH:
 				unregisterSubjectQuestionGenerator(ref);
+				break;
+			default:
+				return;
 			}
+			publishSnapshot();
 		}
 	}
 }